@@ -13,6 +13,10 @@ import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
@@ -28,12 +32,25 @@ import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.swing.Timer;
 
 import org.apache.commons.imaging.Imaging;
@@ -87,6 +104,7 @@ public class MainInterface {
     private final ArrayList<File> selectedFiles;
     private final ArrayList<String> tags;
     private final Map<File, String> transcripts;
+    private final Map<File, JSONArray> speechSegments;
     private final Map<File, String> projectNames;
     private Location selectedLocation;
     private Path resourceDir;
@@ -106,6 +124,12 @@ public class MainInterface {
     private final Border redBorder = BorderFactory.createLineBorder(Color.RED, 2);
     private JDialog debugDialog;
     private JTextArea debugTextArea;
+    private Properties settings;
+    private GalleryMatrix galleryMatrix;
+    private boolean embeddingStoresPruned;
+    private WorkerPool faceWorkerPool;
+    private WorkerPool speechWorkerPool;
+    private final Map<File, MediaInfo> mediaInfos = new ConcurrentHashMap<>();
 
     public static void main(String[] args) {
         FlatLightLaf.setup();
@@ -148,11 +172,14 @@ public class MainInterface {
         file_chooser = new JFileChooser();
         selectedFiles = new ArrayList<>();
         tags = new ArrayList<>();
-        transcripts = new HashMap<>();
+        // Written from the parallel recognition jobs.
+        transcripts = Collections.synchronizedMap(new HashMap<>());
+        speechSegments = Collections.synchronizedMap(new HashMap<>());
         projectNames = new HashMap<>();
 
         try {
             setupResources();
+            settings = loadSettings();
         } catch (Exception e) {
             JOptionPane.showMessageDialog(frame, "Failed to initialize resources: " + e.getMessage(), "Initialization Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon));
             System.exit(1);
@@ -198,6 +225,160 @@ public class MainInterface {
         frame.setSize(800, 800);
         frame.setVisible(true);
         showWhatsNewIfNeeded();
+
+        // Resident Python workers must not outlive the application.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownWorkers));
+    }
+
+    private synchronized WorkerPool getFaceWorkerPool() {
+        if (faceWorkerPool == null) {
+            List<String> command = new ArrayList<>();
+            command.add(pythonExecutablePath);
+            command.add(resourceDir.resolve("video_tagger_CLI.py").toString());
+            command.add("--worker");
+            command.add(resourceDir.resolve("known_faces.index").toString());
+            command.add(resourceDir.resolve("names.json").toString());
+            // The bundled index and names only seed the gallery the first time.
+            command.add("--gallery");
+            command.add(galleryDir().toString());
+            command.add("--ffmpeg-path");
+            command.add(ffmpegExecutablePath);
+            command.add("--ffprobe-path");
+            command.add(ffprobeExecutablePath);
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            int size = intSetting("face.workers", 0);
+            if (size <= 0) {
+                // Every worker runs its own multi-threaded inference, so one per four cores keeps the
+                // machine busy without oversubscribing it.
+                size = Math.max(1, Math.min(4, cores / 4));
+            }
+            // The worker probes the machine for the decoder and inference provider of the profile and
+            // logs what it picked before it says hello.
+            command.add("--accel");
+            command.add(settings.getProperty("face.accel", "auto"));
+            command.add("--threads");
+            command.add(String.valueOf(Math.max(1, cores / size)));
+            faceWorkerPool = new WorkerPool("Face worker", command, size);
+        }
+        return faceWorkerPool;
+    }
+
+    private synchronized WorkerPool getSpeechWorkerPool() {
+        if (speechWorkerPool == null) {
+            List<String> command = List.of(pythonExecutablePath, resourceDir.resolve("detect_speech.py").toString(),
+                    "--worker", "--models=" + settings.getProperty("speech.models", "small,large-v2").trim(), hfToken);
+            speechWorkerPool = new WorkerPool("Speech worker", command, Math.max(1, intSetting("speech.workers", 1)));
+        }
+        return speechWorkerPool;
+    }
+
+    private Path galleryDir() {
+        return resourceDir.resolve("gallery");
+    }
+
+    /**
+     * Adds the faces assigned during review to the gallery. Runs in the background; the face
+     * workers notice the new gallery version and reload it before their next job.
+     */
+    private void enrollFaces(List<UnknownFace> faces, List<String> names) {
+        List<String> command = List.of(pythonExecutablePath, resourceDir.resolve("face_gallery.py").toString(),
+                "enroll", "--gallery", galleryDir().toString(),
+                "--index-type", settings.getProperty("gallery.index_type", "auto"));
+        Thread enrollment = new Thread(() -> {
+            StringBuilder errorOutput = new StringBuilder();
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8))) {
+                    for (int i = 0; i < faces.size(); i++) {
+                        writer.write(new JSONObject().put("name", names.get(i)).put("embedding", faces.get(i).embedding).toString());
+                        writer.newLine();
+                    }
+                }
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        JSONObject event = WorkerEvents.parse(line);
+                        String text = event == null ? line : event.optString("message");
+                        System.out.println("Face gallery: " + text);
+                        errorOutput.append(text).append("\n");
+                    }
+                }
+                if (process.waitFor() != 0) {
+                    throw new IOException(errorOutput.toString());
+                }
+            } catch (IOException | InterruptedException e) {
+                final String errorMessage = "The faces could not be added to the gallery.\n\n" + e.getMessage();
+                SwingUtilities.invokeLater(() ->
+                        JOptionPane.showMessageDialog(frame, errorMessage, "Face Gallery Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                );
+            }
+        }, "Face enrollment");
+        enrollment.start();
+    }
+
+    private synchronized void shutdownWorkers() {
+        if (faceWorkerPool != null) {
+            faceWorkerPool.shutdown();
+        }
+        if (speechWorkerPool != null) {
+            speechWorkerPool.shutdown();
+        }
+    }
+
+    /**
+     * Loads the defaults bundled in application.properties, overridden by an optional
+     * ~/.mediatagger/settings.properties.
+     */
+    private Properties loadSettings() {
+        Properties defaults = new Properties();
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("application.properties")) {
+            if (is != null) {
+                defaults.load(is);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not load default settings: " + e.getMessage());
+        }
+        Properties props = new Properties(defaults);
+        Path settingsPath = resourceDir.resolve("settings.properties");
+        if (Files.exists(settingsPath)) {
+            try (Reader reader = Files.newBufferedReader(settingsPath, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            } catch (IOException e) {
+                System.err.println("Could not load " + settingsPath + ": " + e.getMessage());
+            }
+        }
+        return props;
+    }
+
+    private double doubleSetting(String key, double defaultValue) {
+        String value = settings.getProperty(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /** Processing seconds granted to one video in budget sampling mode, scaled by its length. */
+    private double faceTimeBudget(double durationSeconds) {
+        double perMinute = doubleSetting("face.budget.seconds_per_minute", 2.0);
+        double min = doubleSetting("face.budget.min_seconds", 5.0);
+        double max = doubleSetting("face.budget.max_seconds", 60.0);
+        return Math.max(min, Math.min(max, durationSeconds / 60.0 * perMinute));
+    }
+
+    private int intSetting(String key, int defaultValue) {
+        String value = settings.getProperty(key);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Ignoring invalid value for " + key + ": " + value);
+            return defaultValue;
+        }
     }
 
     // --- ADDED: Method to load the Hugging Face token from the resource file ---
@@ -328,9 +509,14 @@ public class MainInterface {
             Files.createDirectories(resourceDir);
         }
         // --- MODIFIED: Add HF_KEY.txt to the list of resources to copy ---
-        String[] resourceFiles = {"video_tagger_CLI.py", "known_faces.index", "names.json", "install_dependencies.sh", "mount_server.sh", "detect_speech.py", "HF_KEY.txt"};
+        String[] resourceFiles = {"video_tagger_CLI.py", "known_faces.index", "names.json", "install_dependencies.sh", "mount_server.sh", "detect_speech.py", "worker_protocol.py", "face_gallery.py", "HF_KEY.txt"};
+        // The face index only seeds the gallery, which then grows by enrollment.
+        Set<String> seedFiles = Set.of("known_faces.index", "names.json");
         for (String fileName : resourceFiles) {
             Path scriptPath = resourceDir.resolve(fileName);
+            if (seedFiles.contains(fileName) && Files.exists(scriptPath)) {
+                continue;
+            }
             try (InputStream in = getClass().getClassLoader().getResourceAsStream(fileName)) {
                 if (in == null) throw new IOException("Resource not found in JAR: " + fileName);
                 Files.copy(in, scriptPath, StandardCopyOption.REPLACE_EXISTING);
@@ -666,6 +852,9 @@ public class MainInterface {
         List<File> videosToProcess = selectedFiles.stream()
                 .filter(f -> f.getName().toLowerCase().endsWith(".mp4") || f.getName().toLowerCase().endsWith(".mov"))
                 .collect(Collectors.toList());
+        List<File> photosToProcess = selectedFiles.stream()
+                .filter(f -> f.getName().toLowerCase().endsWith(".jpg") || f.getName().toLowerCase().endsWith(".jpeg"))
+                .collect(Collectors.toList());
         boolean needProjectNames = !selectedFiles.isEmpty();
         projectNames.clear();
         if (needProjectNames) {
@@ -691,7 +880,7 @@ public class MainInterface {
             }
         }
 
-        Map<File, FaceData> faceDataMap = runAllFaceRecognition(videosToProcess);
+        Map<File, FaceData> faceDataMap = runAllFaceRecognition(videosToProcess, photosToProcess);
         Map<File, List<String>> recognizedTags = new LinkedHashMap<>();
         if (faceDataMap != null) {
             faceDataMap.forEach((f, fd) -> recognizedTags.put(f, fd.names));
@@ -704,14 +893,20 @@ public class MainInterface {
         Map<File, List<String>> confirmedTags = new LinkedHashMap<>();
         for (File file : selectedFiles) {
             List<String> peopleTags = recognizedTags.getOrDefault(file, new ArrayList<>());
-            if (videosToProcess.contains(file)) {
+            if (videosToProcess.contains(file) || photosToProcess.contains(file)) {
+                List<String> recognized = peopleTags;
                 peopleTags = showTagReviewDialog(file, peopleTags);
+                FaceData fd = faceDataMap.get(file);
+                List<String> added = peopleTags.stream().filter(n -> !recognized.contains(n)).collect(Collectors.toList());
+                if (fd != null && !fd.unknownFaces.isEmpty() && !added.isEmpty()) {
+                    showEnrollmentDialog(file, fd.unknownFaces, added);
+                }
             }
             confirmedTags.put(file, peopleTags);
 
-            if (chk_text_to_speech.isSelected() && transcripts.containsKey(file)) {
+            if (chk_text_to_speech.isSelected() && speechSegments.containsKey(file)) {
                 FaceData fd = faceDataMap.get(file);
-                String finalText = showTranscriptReviewDialog(file, transcripts.get(file), fd);
+                String finalText = showTranscriptReviewDialog(file, speechSegments.get(file), fd);
                 transcripts.put(file, finalText);
             }
         }
@@ -750,14 +945,15 @@ public class MainInterface {
         }
 
         transcripts.clear();
-        Map<File, FaceData> data = runAllFaceRecognition(videos);
+        speechSegments.clear();
+        Map<File, FaceData> data = runAllFaceRecognition(videos, List.of());
         if (data == null) return;
 
         for (File video : videos) {
-            String json = transcripts.get(video);
-            if (json != null) {
-                FaceData fd = data.getOrDefault(video, new FaceData(new ArrayList<>(), new ArrayList<>()));
-                String finalText = showTranscriptReviewDialog(video, json, fd);
+            JSONArray segments = speechSegments.get(video);
+            if (segments != null) {
+                FaceData fd = data.getOrDefault(video, new FaceData(new ArrayList<>(), FaceTimeline.EMPTY));
+                String finalText = showTranscriptReviewDialog(video, segments, fd);
                 transcripts.put(video, finalText);
             }
         }
@@ -770,6 +966,727 @@ public class MainInterface {
         StreamUpdate(Type type, String line) { this.type = type; this.line = line; }
     }
 
+    /**
+     * The line protocol of the Python scripts, see worker_protocol.py. Every message is EVENT:
+     * followed by a JSON object with the protocol version "v" and the event "type". Any other
+     * stdout line is plain log output, and unknown event types are skipped.
+     */
+    private static final class WorkerEvents {
+        static final String PREFIX = "EVENT:";
+        static final int VERSION = 2;
+
+        /** Returns the event on this line, or null when the line is not an event or not valid JSON. */
+        static JSONObject parse(String line) throws IOException {
+            if (!line.startsWith(PREFIX)) {
+                return null;
+            }
+            JSONObject event;
+            try {
+                event = new JSONObject(line.substring(PREFIX.length()));
+            } catch (org.json.JSONException e) {
+                return null;
+            }
+            int version = event.optInt("v", 0);
+            if (version != VERSION) {
+                throw new IOException("Unsupported worker protocol version " + version + ", expected " + VERSION + ".");
+            }
+            return event;
+        }
+    }
+
+    /**
+     * A long-lived Python process started with --worker. It loads its models once, says hello and
+     * then takes one JSON job per stdin line. Each job streams its events between a start and an
+     * end or error event. If the process dies it is started again on the next job.
+     */
+    private static class PythonWorker {
+        private static final int STDERR_TAIL_LINES = 200;
+
+        private final String name;
+        private final List<String> command;
+        private final Deque<String> stderrTail = new ArrayDeque<>();
+        private final Object stdinLock = new Object();
+        private volatile Process process;
+        private volatile BufferedWriter stdin;
+        private BufferedReader stdout;
+        private volatile boolean cancelled;
+        /** Receives the log lines and stderr of the running job, or null. */
+        private volatile Consumer<StreamUpdate> output;
+
+        PythonWorker(String name, List<String> command) {
+            this.name = name;
+            this.command = command;
+        }
+
+        private synchronized void ensureStarted() throws IOException {
+            if (process != null && process.isAlive()) {
+                return;
+            }
+            synchronized (stderrTail) {
+                stderrTail.clear();
+            }
+            System.out.println(name + ": starting " + String.join(" ", command));
+            Process p = new ProcessBuilder(command).start();
+            process = p;
+            stdin = new BufferedWriter(new OutputStreamWriter(p.getOutputStream(), StandardCharsets.UTF_8));
+            stdout = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+
+            Thread errorDrain = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        synchronized (stderrTail) {
+                            stderrTail.addLast(line);
+                            if (stderrTail.size() > STDERR_TAIL_LINES) stderrTail.removeFirst();
+                        }
+                        Consumer<StreamUpdate> listener = output;
+                        if (listener != null) {
+                            listener.accept(new StreamUpdate(StreamUpdate.Type.STDERR, line));
+                        }
+                    }
+                } catch (IOException ignored) { }
+            }, name + " stderr");
+            errorDrain.setDaemon(true);
+            errorDrain.start();
+
+            // Wait until the models are loaded.
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                JSONObject event = WorkerEvents.parse(line);
+                if (event != null && event.getString("type").equals("hello")) {
+                    return;
+                }
+                log(event, line);
+            }
+            throw new IOException(name + " exited during startup.\n\nError:\n" + stderrTail());
+        }
+
+        /**
+         * Runs one job and forwards its events, including the closing end event, to the handler.
+         * Log events and plain output are printed. An error event fails the job after everything
+         * before it has been handled, so the handler keeps the partial result. A crashed worker is
+         * restarted and the job retried once; the retry starts with a new start event. A job left
+         * before its end or error event, e.g. by a throwing handler, kills the worker, so nothing of
+         * it reaches the next job.
+         */
+        void runJob(JSONObject job, Consumer<JSONObject> eventHandler) throws IOException {
+            runJob(job, eventHandler, null);
+        }
+
+        /** Like {@link #runJob(JSONObject, Consumer)}, and also passes the job's log lines and stderr to output. */
+        void runJob(JSONObject job, Consumer<JSONObject> eventHandler,
+                    Consumer<StreamUpdate> output) throws IOException {
+            this.output = output;
+            try {
+                runJobAttempts(job, eventHandler);
+            } finally {
+                this.output = null;
+            }
+        }
+
+        private void runJobAttempts(JSONObject job, Consumer<JSONObject> eventHandler) throws IOException {
+            cancelled = false;
+            final String jobId = job.optString("id");
+            for (int attempt = 1; ; attempt++) {
+                ensureStarted();
+                // Set once the worker is done with the job, by its end or error event.
+                boolean finished = false;
+                try {
+                    writeLine(job);
+
+                    boolean started = false;
+                    String line;
+                    while ((line = stdout.readLine()) != null) {
+                        JSONObject event = WorkerEvents.parse(line);
+                        if (event == null || event.getString("type").equals("log")) {
+                            log(event, line);
+                            continue;
+                        }
+                        String type = event.getString("type");
+                        // Events of another job never reach this one's handler. An error without an
+                        // id is a job line the worker could not read, so it is this one's.
+                        String eventId = event.optString("id");
+                        if (type.equals("error") && (eventId.isEmpty() || eventId.equals(jobId))) {
+                            finished = true;
+                            throw new IOException(event.optString("message") + "\n\nError:\n" + stderrTail());
+                        }
+                        if (type.equals("start") && eventId.equals(jobId)) {
+                            started = true;
+                        } else if (!started || (type.equals("end") && !eventId.equals(jobId))) {
+                            System.err.println(name + ": dropped an event of another job: " + line);
+                            continue;
+                        }
+                        eventHandler.accept(event);
+                        if (type.equals("end")) {
+                            finished = true;
+                            return;
+                        }
+                    }
+                } catch (IOException e) {
+                    if (process != null && process.isAlive()) {
+                        throw e; // Job level error, the worker is still usable.
+                    }
+                } finally {
+                    if (!finished) {
+                        // Left mid-job, e.g. by a throwing handler: the rest of the job's events
+                        // must not reach the next job, so the worker starts over.
+                        Process p = process;
+                        if (p != null) p.destroyForcibly();
+                    }
+                }
+
+                if (cancelled) {
+                    throw new IOException(name + " was cancelled.");
+                }
+                String error = stderrTail();
+                System.err.println(name + " crashed (attempt " + attempt + "):\n" + error);
+                if (attempt >= 2) {
+                    throw new IOException(name + " crashed.\n\nError:\n" + error);
+                }
+            }
+        }
+
+        private void writeLine(JSONObject message) throws IOException {
+            synchronized (stdinLock) {
+                stdin.write(message.toString());
+                stdin.newLine();
+                stdin.flush();
+            }
+        }
+
+        /**
+         * Sends a control message, which the worker applies right away, also during a job. A worker
+         * that is not running drops it; the next job carries the state it needs.
+         */
+        void send(JSONObject control) {
+            Process p = process;
+            if (p == null || !p.isAlive() || stdin == null) return;
+            try {
+                writeLine(control);
+            } catch (IOException e) {
+                System.err.println(name + ": could not send " + control + ": " + e.getMessage());
+            }
+        }
+
+        private void log(JSONObject event, String line) {
+            String message = event != null ? event.optString("message") : line;
+            System.out.println(name + ": " + message);
+            Consumer<StreamUpdate> listener = output;
+            if (listener != null) {
+                listener.accept(new StreamUpdate(StreamUpdate.Type.STDERR, message));
+            }
+        }
+
+        private String stderrTail() {
+            synchronized (stderrTail) {
+                return String.join("\n", stderrTail);
+            }
+        }
+
+        /** Kills the current job. The worker is started again when the next job arrives. */
+        void cancel() {
+            cancelled = true;
+            Process p = process;
+            if (p != null) {
+                p.destroyForcibly();
+            }
+        }
+
+        void shutdown() {
+            Process p = process;
+            if (p == null) return;
+            try {
+                // Closing stdin lets the worker leave its job loop cleanly.
+                p.getOutputStream().close();
+                if (!p.waitFor(2, TimeUnit.SECONDS)) {
+                    p.destroyForcibly();
+                }
+            } catch (IOException | InterruptedException e) {
+                p.destroyForcibly();
+            }
+        }
+    }
+
+    /** A fixed set of identical workers handed out to one job at a time. */
+    private static class WorkerPool {
+        private final List<PythonWorker> workers = new ArrayList<>();
+        private final BlockingQueue<PythonWorker> idle = new LinkedBlockingQueue<>();
+
+        WorkerPool(String name, List<String> command, int size) {
+            for (int i = 0; i < size; i++) {
+                PythonWorker worker = new PythonWorker(name + " " + (i + 1), command);
+                workers.add(worker);
+                idle.add(worker);
+            }
+        }
+
+        int size() {
+            return workers.size();
+        }
+
+        PythonWorker acquire() throws InterruptedException {
+            return idle.take();
+        }
+
+        void release(PythonWorker worker) {
+            idle.add(worker);
+        }
+
+        void broadcast(JSONObject control) {
+            workers.forEach(worker -> worker.send(control));
+        }
+
+        /** Cancels the running jobs. Idle workers stay warm. */
+        void cancelBusy() {
+            for (PythonWorker worker : workers) {
+                if (!idle.contains(worker)) {
+                    worker.cancel();
+                }
+            }
+        }
+
+        void shutdown() {
+            workers.forEach(PythonWorker::shutdown);
+        }
+    }
+
+    /** One row of the progress dialog, showing a single running job and its live preview. */
+    private static class JobSlot {
+        final JLabel label = new JLabel("Idle");
+        final JProgressBar bar = new JProgressBar(0, 100);
+        final JLabel preview = new JLabel();
+        volatile String status = "Idle";
+        volatile int progress;
+        private volatile java.awt.image.BufferedImage previewFrame;
+        private java.awt.image.BufferedImage shownFrame;
+
+        void clear() {
+            status = "Idle";
+            progress = 0;
+            previewFrame = null;
+        }
+
+        /** Decodes a preview frame off the event thread; the next refresh shows it. */
+        void showPreview(String jpeg) {
+            try {
+                previewFrame = javax.imageio.ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(jpeg)));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Unreadable preview frame: " + e.getMessage());
+            }
+        }
+
+        void refresh() {
+            label.setText(status);
+            bar.setValue(progress);
+            java.awt.image.BufferedImage frame = previewFrame;
+            if (frame != shownFrame) {
+                shownFrame = frame;
+                preview.setIcon(frame == null ? null : new ImageIcon(frame));
+            }
+        }
+    }
+
+    /**
+     * Links the speaker labels of separately transcribed chunks into one set of labels, by the
+     * cosine similarity of the speaker embeddings the chunks report.
+     */
+    private static class SpeakerLinker {
+        private final double minSimilarity;
+        /** Summed unit embeddings per speaker; null for a speaker reported without one. */
+        private final List<float[]> centroids = new ArrayList<>();
+        private final Map<String, String> labels = new HashMap<>();
+
+        SpeakerLinker(double minSimilarity) {
+            this.minSimilarity = minSimilarity;
+        }
+
+        synchronized void add(String chunk, String label, String embedding) {
+            FloatBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(embedding))
+                    .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            float[] vector = new float[buffer.remaining()];
+            buffer.get(vector);
+            normalize(vector);
+            int best = -1;
+            double bestSimilarity = minSimilarity;
+            for (int i = 0; i < centroids.size(); i++) {
+                float[] centroid = centroids.get(i);
+                if (centroid == null || centroid.length != vector.length) continue;
+                double similarity = dot(centroid, vector) / Math.sqrt(dot(centroid, centroid));
+                if (similarity >= bestSimilarity) {
+                    best = i;
+                    bestSimilarity = similarity;
+                }
+            }
+            if (best < 0) {
+                centroids.add(vector);
+                best = centroids.size() - 1;
+            } else {
+                float[] centroid = centroids.get(best);
+                for (int d = 0; d < vector.length; d++) centroid[d] += vector[d];
+            }
+            labels.put(chunk + "/" + label, String.format("SPEAKER_%02d", best));
+        }
+
+        /** The linked label of a chunk's speaker; one the chunk never described gets a label of its own. */
+        synchronized String resolve(String chunk, String label) {
+            if (label == null) return null;
+            return labels.computeIfAbsent(chunk + "/" + label, key -> {
+                centroids.add(null);
+                return String.format("SPEAKER_%02d", centroids.size() - 1);
+            });
+        }
+
+        private static double dot(float[] a, float[] b) {
+            double sum = 0;
+            for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+            return sum;
+        }
+
+        private static void normalize(float[] vector) {
+            double norm = Math.sqrt(dot(vector, vector));
+            if (norm == 0) return;
+            for (int i = 0; i < vector.length; i++) vector[i] /= (float) norm;
+        }
+    }
+
+    /** What one ffprobe call tells about a file: its length, video codec and whether it has sound. */
+    private static class MediaInfo {
+        final long length;
+        final long lastModified;
+        /** Whether ffprobe read the file; the other fields are only defaults otherwise. */
+        final boolean probed;
+        final double duration;
+        final String videoCodec;
+        final boolean hasAudio;
+
+        MediaInfo(File file, boolean probed, double duration, String videoCodec, boolean hasAudio) {
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.probed = probed;
+            this.duration = duration;
+            this.videoCodec = videoCodec;
+            this.hasAudio = hasAudio;
+        }
+
+        boolean isCurrent(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * One file on its way through the AnalysisBus. Besides the probe result it carries the audio an
+     * analyzer that decodes the file demuxed along the way: 16 kHz mono float32 PCM, one part per
+     * shard, so analyzers of the sound never decode the file a second time. The worker jobs of all
+     * analyzers of the file run through it, so a failing analyzer can stop the others.
+     */
+    private static class MediaSource {
+        final File file;
+        final MediaInfo info;
+        private boolean audioRequested;
+        private Path audioDir;
+        private int audioPartCount;
+        private boolean audioComplete;
+        private double livePartSeconds;
+        private final CompletableFuture<List<Path>> liveAudio = new CompletableFuture<>();
+        /** Share of the file that is speech, once the voice activity pre-pass has run; -1 before. */
+        volatile double speechRatio = -1;
+        private final Set<PythonWorker> runningWorkers = new HashSet<>();
+        private boolean cancelled;
+
+        MediaSource(File file, MediaInfo info) {
+            this.file = file;
+            this.info = info;
+        }
+
+        /** Runs a job of this file on the worker, where {@link #cancel()} can reach it. */
+        void runJob(PythonWorker worker, JSONObject job, Consumer<JSONObject> eventHandler) throws IOException {
+            runJob(worker, job, eventHandler, null);
+        }
+
+        void runJob(PythonWorker worker, JSONObject job, Consumer<JSONObject> eventHandler,
+                    Consumer<StreamUpdate> output) throws IOException {
+            synchronized (this) {
+                if (cancelled) throw new IOException(file.getName() + " was cancelled.");
+                runningWorkers.add(worker);
+            }
+            try {
+                worker.runJob(job, eventHandler, output);
+            } finally {
+                synchronized (this) {
+                    runningWorkers.remove(worker);
+                }
+            }
+        }
+
+        /** Kills the running jobs of this file and refuses new ones. Other files keep running. */
+        synchronized void cancel() {
+            cancelled = true;
+            runningWorkers.forEach(PythonWorker::cancel);
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        synchronized boolean audioRequested() {
+            return audioRequested;
+        }
+
+        synchronized void requestAudio(boolean requested) {
+            audioRequested = requested;
+        }
+
+        /** Where shard {@code part} of {@code count} writes its audio. */
+        synchronized Path audioPart(int part, int count) throws IOException {
+            if (audioDir == null) {
+                audioDir = Files.createTempDirectory("mediatagger_audio_");
+            }
+            audioPartCount = count;
+            return audioDir.resolve(part + ".f32");
+        }
+
+        synchronized void setAudioComplete(boolean complete) {
+            audioComplete = complete;
+        }
+
+        /**
+         * Offers the audio parts to analyzers running at the same time while they are still being
+         * written; part i starts at i times {@code partSeconds}. Null tells them to decode the audio
+         * themselves. Only the first call counts.
+         */
+        synchronized void shareLiveAudio(List<Path> parts, double partSeconds) {
+            if (liveAudio.isDone()) return;
+            livePartSeconds = partSeconds;
+            liveAudio.complete(parts);
+        }
+
+        /** Waits for the decoding analyzer to share its audio parts; null when it does not. */
+        List<Path> awaitLiveAudio() throws InterruptedException {
+            try {
+                return liveAudio.get();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        synchronized double livePartSeconds() {
+            return livePartSeconds;
+        }
+
+        /**
+         * Marks a shared part as finished next to it, with ".done" when it holds all of its range
+         * or ".failed" when its readers have to decode that range themselves. The first mark stays.
+         */
+        synchronized void finishAudioPart(int part, boolean complete) {
+            if (audioDir == null) return;
+            Path path = audioDir.resolve(part + ".f32");
+            try {
+                if (Files.exists(Paths.get(path + ".done")) || Files.exists(Paths.get(path + ".failed"))) return;
+                Files.createFile(Paths.get(path + (complete ? ".done" : ".failed")));
+            } catch (IOException e) {
+                System.err.println("Could not mark the demuxed audio: " + e.getMessage());
+            }
+        }
+
+        /** Ends the sharing once the decoding analyzer is done: parts it never finished count as failed. */
+        synchronized void closeLiveAudio() {
+            liveAudio.complete(null);
+            for (int i = 0; i < audioPartCount; i++) {
+                finishAudioPart(i, false);
+            }
+        }
+
+        /** The audio parts in order, or null unless an analyzer demuxed all of it. */
+        synchronized List<Path> audio() {
+            if (!audioComplete) return null;
+            List<Path> parts = new ArrayList<>();
+            for (int i = 0; i < audioPartCount; i++) {
+                parts.add(audioDir.resolve(i + ".f32"));
+            }
+            return parts;
+        }
+
+        synchronized void releaseAudio() {
+            audioComplete = false;
+            if (audioDir == null) return;
+            try (DirectoryStream<Path> parts = Files.newDirectoryStream(audioDir)) {
+                for (Path part : parts) {
+                    Files.deleteIfExists(part);
+                }
+                Files.deleteIfExists(audioDir);
+            } catch (IOException e) {
+                System.err.println("Could not remove the demuxed audio: " + e.getMessage());
+            }
+            audioDir = null;
+        }
+    }
+
+    /** One kind of analysis of a media file, run by the AnalysisBus. */
+    private interface MediaAnalyzer {
+        /** The status shown while the analyzer runs. */
+        String name();
+
+        /** Whether the analyzer decodes the file itself, and so can demux the audio on the way. */
+        default boolean decodesMedia() {
+            return false;
+        }
+
+        /** Whether the analyzer works on the audio, which it takes from the source when it can. */
+        default boolean needsAudio() {
+            return false;
+        }
+
+        /** Analyses the source and reports its progress from 0 to 100 and its status to the stage. */
+        void analyze(MediaSource source, JobSlot slot, AnalysisStage stage) throws Exception;
+    }
+
+    /**
+     * The progress and status of one analyzer on one file. The AnalysisBus combines the stages of a
+     * file into its row of the progress dialog whenever one of them changes, each by its weight: the
+     * share of the file's work it expects to be, 1 until the analyzer knows better.
+     */
+    private static class AnalysisStage implements IntConsumer {
+        private final Runnable changed;
+        volatile double weight = 1.0;
+        volatile int progress;
+        volatile String status;
+        volatile boolean running;
+
+        AnalysisStage(String status, Runnable changed) {
+            this.status = status;
+            this.changed = changed;
+        }
+
+        @Override
+        public void accept(int value) {
+            progress = value;
+            changed.run();
+        }
+
+        void status(String text) {
+            status = text;
+            changed.run();
+        }
+    }
+
+    /**
+     * Runs the registered analyzers over a file with the file read as few times as possible. The
+     * first analyzer that decodes the file also demuxes the audio when another analyzer wants it.
+     * Run concurrently, the file takes about as long as its slowest analyzer and the audio analyzers
+     * read the audio while it is being written; run in order, they read it once it is complete. Either way the file's progress is the mean
+     * of the analyzers' progress weighted by their stages, and a failing analyzer cancels the others'
+     * jobs for the file.
+     */
+    private static class AnalysisBus {
+        private final List<MediaAnalyzer> analyzers = new ArrayList<>();
+        private final boolean concurrent;
+
+        AnalysisBus(boolean concurrent) {
+            this.concurrent = concurrent;
+        }
+
+        void register(MediaAnalyzer analyzer) {
+            analyzers.add(analyzer);
+        }
+
+        void run(MediaSource source, JobSlot slot, IntConsumer progress, ExecutorService executor) throws Exception {
+            int count = analyzers.size();
+            AnalysisStage[] stages = new AnalysisStage[count];
+            Runnable changed = () -> {
+                synchronized (stages) {
+                    double done = 0;
+                    double total = 0;
+                    List<String> statuses = new ArrayList<>();
+                    for (AnalysisStage stage : stages) {
+                        if (stage == null) continue;
+                        done += stage.weight * stage.progress;
+                        total += stage.weight;
+                        if (stage.running) statuses.add(stage.status);
+                    }
+                    progress.accept(total > 0 ? (int) (done / total) : 0);
+                    if (!statuses.isEmpty()) {
+                        slot.status = source.file.getName() + " - " + String.join(" | ", statuses);
+                    }
+                }
+            };
+            for (int i = 0; i < count; i++) {
+                stages[i] = new AnalysisStage(analyzers.get(i).name(), changed);
+            }
+
+            try {
+                if (concurrent && count > 1) {
+                    // The decoding analyzer writes the audio as it goes and the audio analyzers read
+                    // it while it grows, so the file is still only demuxed once.
+                    MediaAnalyzer demuxer = source.info.hasAudio && analyzers.stream().anyMatch(MediaAnalyzer::needsAudio)
+                            ? analyzers.stream().filter(MediaAnalyzer::decodesMedia).findFirst().orElse(null)
+                            : null;
+                    source.requestAudio(demuxer != null);
+                    if (demuxer == null) source.shareLiveAudio(null, 0);
+                    List<Future<Void>> running = new ArrayList<>();
+                    for (int i = 0; i < count; i++) {
+                        final MediaAnalyzer analyzer = analyzers.get(i);
+                        final AnalysisStage stage = stages[i];
+                        running.add(executor.submit(() -> {
+                            try {
+                                runStage(analyzer, stage, source, slot);
+                            } finally {
+                                if (analyzer == demuxer) source.closeLiveAudio();
+                            }
+                            return null;
+                        }));
+                    }
+                    awaitAll(running, source);
+                } else {
+                    source.shareLiveAudio(null, 0);
+                    boolean demuxAssigned = false;
+                    for (int i = 0; i < count; i++) {
+                        MediaAnalyzer analyzer = analyzers.get(i);
+                        boolean demux = !demuxAssigned && source.info.hasAudio && analyzer.decodesMedia()
+                                && analyzers.subList(i + 1, count).stream().anyMatch(MediaAnalyzer::needsAudio);
+                        demuxAssigned |= demux;
+                        source.requestAudio(demux);
+                        runStage(analyzer, stages[i], source, slot);
+                    }
+                }
+            } finally {
+                source.releaseAudio();
+            }
+        }
+
+        private static void runStage(MediaAnalyzer analyzer, AnalysisStage stage, MediaSource source, JobSlot slot) throws Exception {
+            stage.running = true;
+            stage.status(analyzer.name());
+            try {
+                analyzer.analyze(source, slot, stage);
+            } finally {
+                stage.running = false;
+                stage.accept(100);
+            }
+        }
+
+        /** Waits for every analyzer; the first failure cancels the rest of the file and is rethrown. */
+        private static void awaitAll(List<Future<Void>> running, MediaSource source) throws Exception {
+            Exception failure = null;
+            try {
+                for (Future<Void> analyzer : running) {
+                    try {
+                        analyzer.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof Exception cause ? cause : e;
+                            source.cancel();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                source.cancel();
+                running.forEach(analyzer -> analyzer.cancel(true));
+                throw e;
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
     private void showRealtimeDebugWindow(String title) {
         if (debugDialog == null) {
             debugDialog = new JDialog(frame, "Debug Output", false); // non-modal
@@ -794,12 +1711,27 @@ public class MainInterface {
         }
     }
 
-    private Map<File, FaceData> runAllFaceRecognition(List<File> videos) {
-        final JDialog progressDialog = new JDialog(frame, "Processing Videos...", true);
+    private Map<File, FaceData> runAllFaceRecognition(List<File> videos, List<File> photos) {
+        final JDialog progressDialog = new JDialog(frame, "Processing Media...", true);
         if (this.appIcon != null) {
             progressDialog.setIconImage(this.appIcon);
         }
-        final JProgressBar overallProgressBar = new JProgressBar(0, videos.size() * 100);
+        // One face worker per concurrent job. Speech workers keep Whisper and pyannote loaded between
+        // files; there is usually one, because a single Whisper model already saturates the accelerator.
+        final WorkerPool facePool = transcriptOnlyMode ? null : getFaceWorkerPool();
+        final WorkerPool speechPool = transcriptOnlyMode || chk_text_to_speech.isSelected() ? getSpeechWorkerPool() : null;
+        // Photos go to the workers in batches, one job each, spread over the pool when there are few.
+        final List<List<File>> photoBatches = new ArrayList<>();
+        if (!photos.isEmpty() && facePool != null) {
+            int batchSize = Math.max(1, Math.min(intSetting("face.photo_batch", 200),
+                    (photos.size() + facePool.size() - 1) / facePool.size()));
+            for (int i = 0; i < photos.size(); i += batchSize) {
+                photoBatches.add(photos.subList(i, Math.min(photos.size(), i + batchSize)));
+            }
+        }
+        final int jobCount = videos.size() + photoBatches.size();
+        final int fileCount = videos.size() + photos.size();
+        final JProgressBar overallProgressBar = new JProgressBar(0, Math.max(1, jobCount) * 100);
         final JLabel overallLabel = new JLabel("Overall Progress");
 
         ImageIcon walkingIcon = null;
@@ -809,12 +1741,16 @@ public class MainInterface {
         }
         final JLabel gifLabel = new JLabel(walkingIcon);
 
-        final JLabel statusLabel = new JLabel("Starting...");
-        final JProgressBar videoProgressBar = new JProgressBar(0, 100);
+        final int concurrency = Math.max(1, Math.min(jobCount, facePool == null ? 1 : facePool.size()));
+        final AtomicIntegerArray videoProgress = new AtomicIntegerArray(jobCount);
+        final AtomicInteger completedFiles = new AtomicInteger();
+
         final JButton cancelButton = new JButton("Cancel");
-        statusLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+        // Face workers only render preview frames while this box is ticked.
+        final JCheckBox previewToggle = new JCheckBox("Show live preview", chk_show_preview.isSelected());
+        previewToggle.setEnabled(facePool != null);
+        final AtomicBoolean previewWatching = new AtomicBoolean(facePool != null && previewToggle.isSelected());
         gifLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-        videoProgressBar.setAlignmentX(Component.CENTER_ALIGNMENT);
         overallProgressBar.setAlignmentX(Component.CENTER_ALIGNMENT);
         overallLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         JPanel panel = new JPanel(new BorderLayout(5, 5));
@@ -822,191 +1758,532 @@ public class MainInterface {
         JPanel progressPanel = new JPanel();
         progressPanel.setLayout(new BoxLayout(progressPanel, BoxLayout.Y_AXIS));
         progressPanel.add(gifLabel);
-        progressPanel.add(Box.createVerticalStrut(5));
-        progressPanel.add(videoProgressBar);
-        progressPanel.add(Box.createVerticalStrut(5));
-        progressPanel.add(statusLabel);
+        final JobSlot[] slots = new JobSlot[concurrency];
+        for (int s = 0; s < concurrency; s++) {
+            slots[s] = new JobSlot();
+            slots[s].label.setAlignmentX(Component.CENTER_ALIGNMENT);
+            slots[s].bar.setAlignmentX(Component.CENTER_ALIGNMENT);
+            slots[s].preview.setAlignmentX(Component.CENTER_ALIGNMENT);
+            slots[s].preview.setVisible(previewWatching.get());
+            progressPanel.add(Box.createVerticalStrut(5));
+            progressPanel.add(slots[s].bar);
+            progressPanel.add(slots[s].label);
+            progressPanel.add(slots[s].preview);
+        }
         progressPanel.add(Box.createVerticalStrut(10));
         progressPanel.add(overallProgressBar);
         progressPanel.add(overallLabel);
-        panel.add(progressPanel, BorderLayout.CENTER);
-        panel.add(cancelButton, BorderLayout.SOUTH);
+        panel.add(new JScrollPane(progressPanel), BorderLayout.CENTER);
+        JPanel buttonPanel = new JPanel(new BorderLayout());
+        buttonPanel.add(previewToggle, BorderLayout.WEST);
+        buttonPanel.add(cancelButton, BorderLayout.CENTER);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
+        previewToggle.addActionListener(e -> {
+            boolean watching = previewToggle.isSelected();
+            previewWatching.set(watching);
+            facePool.broadcast(new JSONObject().put("control", "preview").put("enabled", watching));
+            for (JobSlot slot : slots) {
+                slot.preview.setVisible(watching);
+            }
+            progressPanel.revalidate();
+        });
         progressDialog.setContentPane(panel);
         progressDialog.setSize(700, 550);
         progressDialog.setLocationRelativeTo(frame);
-        final Process[] processHolder = new Process[1];
-        final int[] currentVideoIndex = {0};
+
+        final Runnable cancelRunningJobs = () -> {
+            if (facePool != null) {
+                facePool.cancelBusy();
+            }
+            if (speechPool != null) {
+                speechPool.cancelBusy();
+            }
+        };
 
         SwingWorker<Map<File, FaceData>, StreamUpdate> worker = new SwingWorker<>() {
+            final boolean runSpeech = speechPool != null;
+            final Map<File, FaceData> results = new ConcurrentHashMap<>();
+            // Face recognition is bound by video decoding and speech by the accelerator, so by default
+            // both run on a video at once and speech decodes the audio itself.
+            final AnalysisBus bus = new AnalysisBus(Boolean.parseBoolean(settings.getProperty("analysis.concurrent", "true")));
+            ExecutorService shardExecutor;
+
+            /** Face recognition, which decodes the video and so can also demux the audio for speech. */
+            class FaceAnalyzer implements MediaAnalyzer {
+                @Override
+                public String name() {
+                    return "Detecting Faces";
+                }
+
+                @Override
+                public boolean decodesMedia() {
+                    return true;
+                }
+
+                @Override
+                public void analyze(MediaSource source, JobSlot slot, AnalysisStage stage) throws Exception {
+                    results.put(source.file, runFaceShards(source, slot, stage));
+                }
+            }
+
+            class SpeechAnalyzer implements MediaAnalyzer {
+                @Override
+                public String name() {
+                    return "Detecting Speech";
+                }
+
+                @Override
+                public boolean needsAudio() {
+                    return true;
+                }
+
+                @Override
+                public void analyze(MediaSource source, JobSlot slot, AnalysisStage stage) throws Exception {
+                    runSpeechDetection(source, stage);
+                }
+            }
+
             @Override
             protected Map<File, FaceData> doInBackground() throws Exception {
-                Map<File, FaceData> results = new HashMap<>();
-                Path scriptPath = resourceDir.resolve("video_tagger_CLI.py");
-                Path indexPath = resourceDir.resolve("known_faces.index");
-                Path namesPath = resourceDir.resolve("names.json");
-                Path speechScriptPath = resourceDir.resolve("detect_speech.py");
-
-                final boolean runSpeech = transcriptOnlyMode || chk_text_to_speech.isSelected();
-                final int totalStages = (transcriptOnlyMode ? 0 : 1) + (runSpeech ? 1 : 0);
-                final double stepWeight = 100.0 / totalStages;
-
-                for (int i = 0; i < videos.size(); i++) {
-                    if (isCancelled()) break;
-                    currentVideoIndex[0] = i;
-                    File video = videos.get(i);
-                    final String videoName = video.getName();
-                    setProgress(0);
-                    SwingUtilities.invokeLater(() -> statusLabel.setText(videoName + (transcriptOnlyMode ? " - Detecting Speech" : " - Detecting Faces")));
-
-                    final List<String> recognizedNamesForVideo = new ArrayList<>();
-                    final List<Detection> detectionsForVideo = new ArrayList<>();
-
-                    if (!transcriptOnlyMode) {
-                        ArrayList<String> command = new ArrayList<>();
-                        command.add(pythonExecutablePath);
-                        command.add(scriptPath.toString());
-                        command.add(video.getAbsolutePath());
-                        command.add(indexPath.toString());
-                        command.add(namesPath.toString());
-                        command.add("--ffmpeg-path");
-                        command.add(ffmpegExecutablePath);
-                        command.add("--ffprobe-path");
-                        command.add(ffprobeExecutablePath);
-                        if (chk_show_preview.isSelected()) {
-                            command.add("--preview");
-                        }
-                        ProcessBuilder pb = new ProcessBuilder(command);
-                        processHolder[0] = pb.start();
-
-                        try (
-                                BufferedReader reader = new BufferedReader(new InputStreamReader(processHolder[0].getInputStream()));
-                                BufferedReader errorReader = new BufferedReader(new InputStreamReader(processHolder[0].getErrorStream()))
-                        ) {
-                            String line;
-                            while ((line = reader.readLine()) != null) {
-                                if (line.startsWith("PROGRESS:")) {
-                                    int val = Integer.parseInt(line.substring(9));
-                                    int mapped = (int) (val * stepWeight / 100.0);
-                                    setProgress(mapped);
-                                } else if (line.startsWith("RESULTS:")) {
-                                    String jsonOutput = line.substring(8);
-                                    JSONObject obj = new JSONObject(jsonOutput);
-                                    JSONArray namesArr = obj.getJSONArray("names");
-                                    for (int j = 0; j < namesArr.length(); j++) {
-                                        recognizedNamesForVideo.add(namesArr.getString(j));
-                                    }
-                                    JSONArray detArr = obj.getJSONArray("detections");
-                                    for (int j = 0; j < detArr.length(); j++) {
-                                        JSONObject d = detArr.getJSONObject(j);
-                                        detectionsForVideo.add(new Detection(d.getDouble("time"), d.getString("name")));
-                                    }
+                if (!transcriptOnlyMode) {
+                    bus.register(new FaceAnalyzer());
+                    pruneEmbeddingStores();
+                }
+                if (runSpeech) {
+                    bus.register(new SpeechAnalyzer());
+                }
+                BlockingQueue<JobSlot> freeSlots = new LinkedBlockingQueue<>(Arrays.asList(slots));
+                ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+                shardExecutor = Executors.newCachedThreadPool();
+                try {
+                    List<Future<?>> futures = new ArrayList<>();
+                    for (int i = 0; i < jobCount; i++) {
+                        final int index = i;
+                        futures.add(executor.submit(() -> {
+                            JobSlot slot = freeSlots.take();
+                            try {
+                                if (index < videos.size()) {
+                                    processVideo(index, videos.get(index), slot);
                                 } else {
-                                    System.out.println("Python stdout: " + line);
+                                    processPhotoBatch(index, photoBatches.get(index - videos.size()), slot);
                                 }
+                            } finally {
+                                slot.clear();
+                                freeSlots.add(slot);
                             }
-
-                            int exitCode = processHolder[0].waitFor();
-                            if (exitCode != 0) {
-                                final String errorOutput = errorReader.lines().collect(Collectors.joining("\n"));
-                                final String errorMessage = "The face recognition failed for file '" + videoName + "' (exit code " + exitCode + ").\n\nError:\n" + errorOutput;
-                                SwingUtilities.invokeLater(() ->
-                                        JOptionPane.showMessageDialog(frame, errorMessage, "Face Recognition Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
-                                );
-                                throw new IOException(errorMessage);
-                            }
+                            return null;
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException e) {
+                            // One failed video aborts the batch, same as the sequential loop did.
+                            cancelRunningJobs.run();
+                            if (e.getCause() instanceof Exception cause) throw cause;
+                            throw e;
                         }
-                    } else {
-                        processHolder[0] = null;
                     }
+                } finally {
+                    executor.shutdownNow();
+                    shardExecutor.shutdownNow();
+                }
+                return results;
+            }
 
-                    results.put(video, new FaceData(recognizedNamesForVideo, detectionsForVideo));
+            private void processVideo(int index, File video, JobSlot slot) throws Exception {
+                if (isCancelled()) return;
+                final IntConsumer setProgress = val -> {
+                    slot.progress = val;
+                    videoProgress.set(index, val);
+                };
+                setProgress.accept(0);
 
-                    if (isCancelled()) break;
+                if (transcriptOnlyMode) {
+                    results.put(video, new FaceData(new ArrayList<>(), FaceTimeline.EMPTY));
+                }
+                bus.run(new MediaSource(video, mediaInfo(video)), slot, setProgress, shardExecutor);
 
-                    if (runSpeech) {
-                        ArrayList<String> speechCmd = new ArrayList<>();
-                        speechCmd.add(pythonExecutablePath);
-                        speechCmd.add(speechScriptPath.toString());
-                        speechCmd.add(video.getAbsolutePath());
-                        speechCmd.add(hfToken);
-                        ProcessBuilder speechPb = new ProcessBuilder(speechCmd);
-                        Process speechProcess = speechPb.start();
-                        SwingUtilities.invokeLater(() -> statusLabel.setText(videoName + " - Detecting Speech"));
+                if (isCancelled()) return;
+                setProgress.accept(100);
+                completedFiles.incrementAndGet();
+            }
 
-                        if (tags.contains("DEBUG")) {
-                            try {
-                                SwingUtilities.invokeAndWait(() -> showRealtimeDebugWindow(videoName));
-                            } catch (Exception e) {
-                                e.printStackTrace();
+            /**
+             * Recognises a batch of photos in a single face worker job. The worker decodes them in
+             * parallel, batches the recognition across photos and reports each photo as it is done,
+             * so a failure part way through keeps the photos before it.
+             */
+            private void processPhotoBatch(int index, List<File> batch, JobSlot slot) throws Exception {
+                if (isCancelled()) return;
+                final IntConsumer setProgress = val -> {
+                    slot.progress = val;
+                    videoProgress.set(index, val);
+                };
+                setProgress.accept(0);
+                slot.status = batch.size() + " photos - Detecting Faces";
+
+                final Map<String, File> files = new HashMap<>();
+                final JSONArray paths = new JSONArray();
+                for (File photo : batch) {
+                    files.put(photo.getAbsolutePath(), photo);
+                    paths.put(photo.getAbsolutePath());
+                }
+                final JSONObject job = new JSONObject()
+                        .put("id", "photos." + index)
+                        .put("photos", paths)
+                        .put("recognition_threshold", doubleSetting("face.recognition_threshold", 1.0));
+                final Map<String, List<UnknownFace>> unknownFaces = new HashMap<>();
+                final AtomicInteger reported = new AtomicInteger();
+                PythonWorker faceWorker = facePool.acquire();
+                try {
+                    faceWorker.runJob(job, event -> {
+                        switch (event.getString("type")) {
+                            case "start" -> {
+                                // A retried job reports every photo again.
+                                unknownFaces.clear();
+                                completedFiles.addAndGet(-reported.getAndSet(0));
                             }
+                            case "progress" -> setProgress.accept(event.getInt("percent"));
+                            case "unknown" -> unknownFaces.computeIfAbsent(event.getString("path"), p -> new ArrayList<>())
+                                    .add(UnknownFace.fromEvent(event));
+                            case "photo" -> {
+                                String path = event.getString("path");
+                                File photo = files.get(path);
+                                if (event.has("error")) {
+                                    System.out.println(photo.getName() + ": " + event.getString("error"));
+                                }
+                                List<String> names = new ArrayList<>();
+                                event.getJSONArray("names").forEach(name -> names.add(name.toString()));
+                                results.put(photo, new FaceData(names, FaceTimeline.EMPTY,
+                                        unknownFaces.getOrDefault(path, new ArrayList<>())));
+                                reported.incrementAndGet();
+                                completedFiles.incrementAndGet();
+                            }
+                            default -> { }
                         }
+                    });
+                } catch (IOException e) {
+                    if (isCancelled()) return;
+                    final String errorMessage = "The face recognition failed for " + batch.size() + " photos.\n\n" + e.getMessage();
+                    if (reported.get() == 0) {
+                        SwingUtilities.invokeLater(() ->
+                                JOptionPane.showMessageDialog(frame, errorMessage, "Face Recognition Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                        );
+                        throw new IOException(errorMessage, e);
+                    }
+                    final String partialMessage = errorMessage + "\n\nThe " + reported.get() + " photos recognised before the error are kept.";
+                    SwingUtilities.invokeLater(() ->
+                            JOptionPane.showMessageDialog(frame, partialMessage, "Face Recognition Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                    );
+                } finally {
+                    facePool.release(faceWorker);
+                }
+                setProgress.accept(100);
+            }
 
-                        final StringBuilder speechResult = new StringBuilder();
-                        final StringBuilder stderrOutput = new StringBuilder();
-                        final AtomicBoolean cpuFallback = new AtomicBoolean(false);
-
-                        Thread stdoutReader = new Thread(() -> {
-                            try (BufferedReader reader = new BufferedReader(new InputStreamReader(speechProcess.getInputStream()))) {
-                                String line;
-                                while ((line = reader.readLine()) != null) {
-                                    publish(new StreamUpdate(StreamUpdate.Type.STDOUT, line));
-                                    if (line.startsWith("PROGRESS:")) {
-                                        int val = Integer.parseInt(line.substring(9));
-                                        int mapped = (int) ((transcriptOnlyMode ? 0 : stepWeight) + val * stepWeight / 100.0);
-                                        setProgress(mapped);
-                                        final String stepTxt;
-                                        if (cpuFallback.get()) {
-                                            stepTxt = val < 60 ? "Detecting Speech (Falling back to slow mode)" : "Identifying Speakers";
-                                        } else {
-                                            stepTxt = val < 60 ? "Detecting Speech" : "Identifying Speakers";
-                                        }
-                                        SwingUtilities.invokeLater(() -> statusLabel.setText(videoName + " - " + stepTxt));
-                                    } else if (line.startsWith("RESULTS:")) {
-                                        speechResult.append(line.substring(8));
-                                    } else {
-                                        System.out.println("Speech stdout: " + line);
+            /**
+             * Splits long videos into time ranges that run on separate face workers and merges the
+             * partial results back into one FaceData with absolute timestamps. When the source asks
+             * for the audio, every shard's ffmpeg also writes the audio of its range.
+             */
+            private FaceData runFaceShards(MediaSource source, JobSlot slot, IntConsumer setProgress) throws Exception {
+                final File video = source.file;
+                final String videoName = video.getName();
+                double duration = source.info.duration;
+                String sampling = settings.getProperty("face.sampling", "fixed");
+                // A budgeted job already has a bounded cost, splitting it would only add start-up work.
+                boolean budgeted = sampling.equals("budget");
+                int shardSeconds = intSetting("face.shard.seconds", 300);
+                int shardCount = 1;
+                if (!budgeted && facePool.size() > 1 && shardSeconds > 0 && duration >= 2.0 * shardSeconds) {
+                    shardCount = (int) Math.ceil(duration / shardSeconds);
+                }
+                final double shardLength = shardCount > 1 ? duration / shardCount : 0;
+                final int[] shardProgress = new int[shardCount];
+                final FaceDataBuilder[] collected = new FaceDataBuilder[shardCount];
+                final int recognitionWidth = intSetting("face.recognition_width", 0);
+                final int detectionWidth = intSetting("face.detection_width", 640);
+                final double threshold = doubleSetting("face.recognition_threshold", 1.0);
+
+                // A video analysed before with the same sampling only needs its stored embeddings
+                // matched against the current gallery and threshold.
+                String analysis = sampling + "|" + recognitionWidth + "|" + detectionWidth;
+                if (budgeted) {
+                    analysis += "|" + faceTimeBudget(duration);
+                }
+                final String storeKey = embeddingStoreKey(video, analysis);
+                if (Boolean.parseBoolean(settings.getProperty("face.reuse_embeddings", "true"))) {
+                    long started = System.nanoTime();
+                    FaceData reused = rematchStoredFaces(storeKey, threshold);
+                    if (reused != null) {
+                        System.out.printf("%s: matched stored faces against the gallery in %d ms%n",
+                                videoName, (System.nanoTime() - started) / 1_000_000);
+                        setProgress.accept(100);
+                        return reused;
+                    }
+                }
+                deleteEmbeddingStores(storeKey);
+                final List<Path> audioParts = new ArrayList<>();
+                if (source.audioRequested()) {
+                    for (int s = 0; s < shardCount; s++) {
+                        audioParts.add(source.audioPart(s, shardCount));
+                    }
+                    source.shareLiveAudio(audioParts, shardLength);
+                }
+
+                List<Future<Void>> shards = new ArrayList<>();
+                for (int s = 0; s < shardCount; s++) {
+                    final int shard = s;
+                    final FaceDataBuilder builder = new FaceDataBuilder();
+                    collected[shard] = builder;
+                    final JSONObject job = new JSONObject();
+                    job.put("id", videoName + "." + shard);
+                    job.put("video_path", video.getAbsolutePath());
+                    job.put("preview", previewWatching.get());
+                    job.put("sampling", sampling);
+                    job.put("recognition_threshold", threshold);
+                    job.put("resize_width", detectionWidth);
+                    job.put("embedding_store", embeddingStoreDir().resolve(storeKey + "." + shard + "of" + shardCount + ".faces").toString());
+                    if (recognitionWidth > 0) {
+                        job.put("recognition_width", recognitionWidth);
+                    }
+                    if (!audioParts.isEmpty()) {
+                        job.put("audio_out", audioParts.get(shard).toString());
+                    }
+                    if (budgeted) {
+                        job.put("time_budget", faceTimeBudget(duration));
+                    }
+                    if (shardCount > 1) {
+                        job.put("start", shard * shardLength);
+                        // The last shard runs to the end so rounding never drops the final frames.
+                        if (shard < shardCount - 1) job.put("duration", shardLength);
+                    }
+                    shards.add(shardExecutor.submit(() -> {
+                        boolean finished = false;
+                        PythonWorker faceWorker = facePool.acquire();
+                        try {
+                            source.runJob(faceWorker, job, event -> {
+                                if (event.getString("type").equals("progress")) {
+                                    int val = event.getInt("percent");
+                                    int sum;
+                                    synchronized (shardProgress) {
+                                        shardProgress[shard] = val;
+                                        sum = Arrays.stream(shardProgress).sum();
                                     }
+                                    setProgress.accept(sum / shardProgress.length);
+                                } else if (event.getString("type").equals("preview")) {
+                                    slot.showPreview(event.getString("jpeg"));
+                                } else {
+                                    builder.accept(event);
                                 }
-                            } catch (IOException e) {
-                                publish(new StreamUpdate(StreamUpdate.Type.STDERR, "Error reading stdout: " + e.getMessage()));
+                            });
+                            finished = true;
+                        } finally {
+                            facePool.release(faceWorker);
+                            if (!audioParts.isEmpty()) {
+                                source.finishAudioPart(shard, finished && builder.audioComplete());
                             }
-                        });
-
-                        Thread stderrReader = new Thread(() -> {
-                            try (BufferedReader reader = new BufferedReader(new InputStreamReader(speechProcess.getErrorStream()))) {
-                                String line;
-                                while ((line = reader.readLine()) != null) {
-                                    publish(new StreamUpdate(StreamUpdate.Type.STDERR, line));
-                                    stderrOutput.append(line).append("\n");
-                                    if (line.contains("Whisper produced no text on MPS")) {
-                                        cpuFallback.set(true);
-                                        SwingUtilities.invokeLater(() -> statusLabel.setText(videoName + " - Detecting Speech (Falling back to slow mode)"));
+                        }
+                        JSONObject coverage = builder.coverage();
+                        if (coverage != null) {
+                            System.out.println(videoName + " sampling coverage: " + coverage);
+                        }
+                        return null;
+                    }));
+                }
+
+                ExecutionException failure = null;
+                for (Future<?> shard : shards) {
+                    try {
+                        shard.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e;
+                            shards.forEach(f -> f.cancel(true));
+                        }
+                    } catch (CancellationException ignored) {
+                        // Cancelled after an earlier shard failed, its detections so far are kept.
+                    }
+                }
+                // Every shard reports its faces as it goes, so a failed or cancelled run still keeps
+                // what was found before it stopped.
+                List<FaceData> parts = new ArrayList<>();
+                boolean anyStarted = false;
+                boolean audioComplete = failure == null;
+                for (FaceDataBuilder builder : collected) {
+                    parts.add(builder.build());
+                    anyStarted |= builder.hasStarted();
+                    audioComplete &= builder.audioComplete();
+                }
+                source.setAudioComplete(source.audioRequested() && audioComplete);
+                // A file cancelled because its speech detection failed keeps its faces quietly.
+                if (failure != null && !isCancelled() && !source.isCancelled()) {
+                    final String errorMessage = "The face recognition failed for file '" + videoName + "'.\n\n" + failure.getCause().getMessage();
+                    if (!anyStarted) {
+                        // Nothing ran at all, usually a worker that cannot start, so stop the batch.
+                        SwingUtilities.invokeLater(() ->
+                                JOptionPane.showMessageDialog(frame, errorMessage, "Face Recognition Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                        );
+                        throw new IOException(errorMessage, failure.getCause());
+                    }
+                    final String partialMessage = errorMessage + "\n\nThe faces found before the error are kept.";
+                    SwingUtilities.invokeLater(() ->
+                            JOptionPane.showMessageDialog(frame, partialMessage, "Face Recognition Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                    );
+                }
+                return FaceData.merge(parts);
+            }
+
+            /**
+             * Transcribes a video on the speech workers. With more than one worker, long videos are
+             * split into chunks that run side by side; every job reports its segments window by
+             * window, and the speakers of all chunks are linked into one set of labels.
+             */
+            private void runSpeechDetection(MediaSource source, AnalysisStage stage) throws Exception {
+                if (isCancelled()) return;
+                final File video = source.file;
+                final String videoName = video.getName();
+                if (source.info.probed && !source.info.hasAudio) {
+                    // Nothing to transcribe; the stage completes its share right away.
+                    speechSegments.put(video, new JSONArray());
+                    source.speechRatio = 0;
+                    return;
+                }
+                final double duration = source.info.duration;
+                int chunkSeconds = intSetting("speech.chunk.seconds", 600);
+                int chunkCount = 1;
+                if (speechPool.size() > 1 && chunkSeconds > 0 && duration >= 2.0 * chunkSeconds) {
+                    chunkCount = (int) Math.ceil(duration / chunkSeconds);
+                }
+                final double chunkLength = duration / chunkCount;
+                final boolean vad = Boolean.parseBoolean(settings.getProperty("speech.vad", "true"));
+                stage.status("Waiting for Speech Detection");
+                // Audio the face analysis demuxed saves decoding the file again: all of it when the
+                // face analysis ran first, or the parts it is still writing when both run at once.
+                final List<Path> audio = source.audio();
+                final List<Path> liveAudio = audio == null ? source.awaitLiveAudio() : null;
+
+                if (tags.contains("DEBUG")) {
+                    try {
+                        SwingUtilities.invokeAndWait(() -> showRealtimeDebugWindow(videoName));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                // Segments are collected as their events arrive, so a failed run keeps what it reported.
+                final List<List<JSONObject>> chunkSegments = new ArrayList<>();
+                final int[] chunkProgress = new int[chunkCount];
+                final double[] chunkSpeech = new double[chunkCount];
+                final double[] chunkCovered = new double[chunkCount];
+                final AtomicInteger completedChunks = new AtomicInteger();
+                final double linkSimilarity = doubleSetting("speech.speaker_link_similarity", 0.5);
+                final SpeakerLinker speakers = new SpeakerLinker(linkSimilarity);
+                speechSegments.remove(video);
+
+                List<Future<Void>> chunks = new ArrayList<>();
+                for (int c = 0; c < chunkCount; c++) {
+                    final int chunk = c;
+                    final List<JSONObject> collected = new ArrayList<>();
+                    chunkSegments.add(collected);
+                    final String jobId = videoName + "#" + chunk;
+                    final JSONObject job = new JSONObject()
+                            .put("id", jobId)
+                            .put("video_path", video.getAbsolutePath())
+                            .put("vad", vad)
+                            .put("escalate_avg_logprob", doubleSetting("speech.escalate.avg_logprob", -0.7))
+                            .put("escalate_no_speech_prob", doubleSetting("speech.escalate.no_speech_prob", 0.5))
+                            .put("escalate_compression_ratio", doubleSetting("speech.escalate.compression_ratio", 2.4))
+                            .put("speaker_link_similarity", linkSimilarity)
+                            .put("start", chunk * chunkLength);
+                    // Without a known duration the job runs to the end of the audio, without progress.
+                    if (duration > 0) {
+                        job.put("duration", chunk < chunkCount - 1 ? chunkLength : duration - chunk * chunkLength);
+                    }
+                    if (audio != null) {
+                        job.put("audio", new JSONArray(audio.stream().map(Path::toString).collect(Collectors.toList())));
+                    } else if (liveAudio != null) {
+                        job.put("audio", new JSONArray(liveAudio.stream().map(Path::toString).collect(Collectors.toList())))
+                                .put("audio_live", true)
+                                .put("audio_part_seconds", source.livePartSeconds());
+                    }
+                    chunks.add(shardExecutor.submit(() -> {
+                        PythonWorker speechWorker = speechPool.acquire();
+                        try {
+                            source.runJob(speechWorker, job, event -> {
+                                publish(new StreamUpdate(StreamUpdate.Type.STDOUT, event.toString()));
+                                synchronized (chunkSegments) {
+                                    switch (event.getString("type")) {
+                                        case "start" -> collected.clear(); // A retried job reports everything again.
+                                        case "progress" -> {
+                                            chunkProgress[chunk] = event.getInt("percent");
+                                            String stepTxt = event.optString("status", "Detecting Speech");
+                                            if (source.speechRatio >= 0) {
+                                                stepTxt += String.format(" (%.0f%% speech)", source.speechRatio * 100);
+                                            }
+                                            stage.status = stepTxt;
+                                            stage.accept(Arrays.stream(chunkProgress).sum() / chunkProgress.length);
+                                        }
+                                        case "vad" -> {
+                                            chunkSpeech[chunk] = event.getDouble("speech_seconds");
+                                            chunkCovered[chunk] = event.getDouble("duration");
+                                            double covered = Arrays.stream(chunkCovered).sum();
+                                            source.speechRatio = covered > 0 ? Math.min(1.0, Arrays.stream(chunkSpeech).sum() / covered) : 0;
+                                            // Only the speech is transcribed and diarized, the voice activity pass over the
+                                            // rest costs about a fifth as much, so a quiet file weighs less in the progress.
+                                            stage.weight = 0.2 + 0.8 * source.speechRatio;
+                                            stage.accept(stage.progress);
+                                        }
+                                        case "speaker" -> speakers.add(jobId, event.getString("label"), event.getString("embedding"));
+                                        case "segment" -> collected.add(new JSONObject()
+                                                .put("start", event.getDouble("start"))
+                                                .put("end", event.getDouble("end"))
+                                                .put("text", event.optString("text", ""))
+                                                .putOpt("speaker", speakers.resolve(jobId, event.optString("speaker", null))));
+                                        case "end" -> completedChunks.incrementAndGet();
+                                        default -> { }
                                     }
                                 }
-                            } catch (IOException e) {
-                                publish(new StreamUpdate(StreamUpdate.Type.STDERR, "Error reading stderr: " + e.getMessage()));
-                            }
-                        });
-
-                        stdoutReader.start();
-                        stderrReader.start();
-
-                        int speechCode = speechProcess.waitFor();
-                        stdoutReader.join();
-                        stderrReader.join();
-
-                        if (speechCode != 0) {
-                            final String errorText = stderrOutput.toString();
-                            final String errorMessage = "The speech detection failed for file '" + videoName + "' (exit code " + speechCode + ").\n\nError:\n" + errorText;
-                            SwingUtilities.invokeLater(() ->
-                                    JOptionPane.showMessageDialog(frame, errorMessage, "Speech Detection Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
-                            );
-                        } else if (!speechResult.isEmpty()) {
-                            transcripts.put(video, speechResult.toString());
+                            }, update -> publish(update)); // Log lines and stderr reach the DEBUG window.
+                        } finally {
+                            speechPool.release(speechWorker);
                         }
+                        return null;
+                    }));
+                }
+
+                Exception failure = null;
+                for (Future<Void> chunk : chunks) {
+                    try {
+                        chunk.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof Exception cause ? cause : e;
+                        }
+                    } catch (CancellationException ignored) {
+                        // The whole run was cancelled.
                     }
                 }
-                return results;
+                // A file cancelled because its face recognition failed reports that failure instead.
+                if (isCancelled() || source.isCancelled()) return;
+                if (failure != null) {
+                    publish(new StreamUpdate(StreamUpdate.Type.STDERR, failure.getMessage()));
+                    final String errorMessage = "The speech detection failed for file '" + videoName + "'.\n\nError:\n" + failure.getMessage();
+                    SwingUtilities.invokeLater(() ->
+                            JOptionPane.showMessageDialog(frame, errorMessage, "Speech Detection Error", JOptionPane.ERROR_MESSAGE, new ImageIcon(appIcon))
+                    );
+                }
+                System.out.printf("%s: %.0f%% speech%n", videoName, Math.max(0, source.speechRatio) * 100);
+
+                List<JSONObject> ordered = new ArrayList<>();
+                synchronized (chunkSegments) {
+                    chunkSegments.forEach(ordered::addAll);
+                }
+                ordered.sort(Comparator.comparingDouble(segment -> segment.getDouble("start")));
+                if (completedChunks.get() == chunkCount || !ordered.isEmpty()) {
+                    speechSegments.put(video, new JSONArray(ordered));
+                }
             }
 
             @Override
@@ -1025,26 +2302,37 @@ public class MainInterface {
         };
 
         cancelButton.addActionListener(e -> {
-            Process p = processHolder[0];
-            if (p != null) {
-                p.destroyForcibly();
-            }
+            cancelRunningJobs.run();
             worker.cancel(true);
         });
 
-        worker.addPropertyChangeListener(evt -> {
-            if ("progress".equals(evt.getPropertyName())) {
-                int val = (Integer) evt.getNewValue();
-                videoProgressBar.setValue(val);
-                int videoBaseProgress = currentVideoIndex[0] * 100;
-                int overallProgress = videoBaseProgress + val;
-                overallProgressBar.setValue(overallProgress);
-                overallLabel.setText("Overall Progress: " + (currentVideoIndex[0] + 1) + " / " + videos.size());
+        // Progress is polled rather than pushed so parallel jobs do not flood the event queue.
+        final long startedAt = System.nanoTime();
+        Timer progressTimer = new Timer(200, e -> {
+            int overallProgress = 0;
+            for (int i = 0; i < videoProgress.length(); i++) {
+                overallProgress += videoProgress.get(i);
+            }
+            overallProgressBar.setValue(overallProgress);
+            String overall = "Overall Progress: " + completedFiles.get() + " / " + fileCount + " done";
+            // The file rows already weigh their analyses by the work they expect, so the time left
+            // follows the rate that weighted progress has been made at so far.
+            int total = overallProgressBar.getMaximum();
+            double elapsed = (System.nanoTime() - startedAt) / 1e9;
+            if (elapsed >= 10 && overallProgress >= total / 50 && overallProgress > 0 && overallProgress < total) {
+                long left = Math.round(elapsed * (total - overallProgress) / overallProgress);
+                overall += String.format(", about %d:%02d:%02d left", left / 3600, left / 60 % 60, left % 60);
+            }
+            overallLabel.setText(overall);
+            for (JobSlot slot : slots) {
+                slot.refresh();
             }
         });
+        progressTimer.start();
 
         worker.execute();
         progressDialog.setVisible(true);
+        progressTimer.stop();
 
         try {
             return worker.get();
@@ -1109,9 +2397,62 @@ public class MainInterface {
         return confirmedNames;
     }
 
-    private String showTranscriptReviewDialog(File video, String json, FaceData faceData) {
-        JSONObject obj = new JSONObject(json);
-        JSONArray rawSegments = obj.getJSONArray("segments");
+    /**
+     * Lets the user match the names added during review to the faces the recognition did not know,
+     * and enrolls the matched faces so they are recognised from then on.
+     */
+    private void showEnrollmentDialog(File video, List<UnknownFace> faces, List<String> addedNames) {
+        JDialog dialog = new JDialog(frame, "Who is this? " + video.getName(), true);
+        if (this.appIcon != null) {
+            dialog.setIconImage(this.appIcon);
+        }
+        dialog.setLayout(new BorderLayout(10, 10));
+        JPanel facesPanel = new JPanel(new GridLayout(0, 1, 5, 5));
+        List<JComboBox<String>> choices = new ArrayList<>();
+        for (UnknownFace face : faces) {
+            JComboBox<String> choice = new JComboBox<>();
+            choice.addItem("Skip");
+            addedNames.forEach(choice::addItem);
+            choices.add(choice);
+            // Faces from photos have no time range.
+            JLabel thumbnail = new JLabel(face.end > 0 ? String.format("%s-%s", formatTime(face.start), formatTime(face.end)) : "");
+            if (face.thumbnail.length > 0) {
+                thumbnail.setIcon(new ImageIcon(new ImageIcon(face.thumbnail).getImage().getScaledInstance(96, 96, Image.SCALE_SMOOTH)));
+            }
+            JPanel row = new JPanel(new BorderLayout(5, 5));
+            row.add(thumbnail, BorderLayout.CENTER);
+            row.add(choice, BorderLayout.EAST);
+            facesPanel.add(row);
+        }
+        JButton enrollButton = new JButton("Add to Known Faces");
+        JButton skipButton = new JButton("Skip");
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(skipButton);
+        buttonPanel.add(enrollButton);
+        dialog.add(new JLabel("Pick the name of every face you recognise:"), BorderLayout.NORTH);
+        dialog.add(new JScrollPane(facesPanel), BorderLayout.CENTER);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+        skipButton.addActionListener(e -> dialog.dispose());
+        enrollButton.addActionListener(e -> {
+            List<UnknownFace> enrolled = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < faces.size(); i++) {
+                if (choices.get(i).getSelectedIndex() > 0) {
+                    enrolled.add(faces.get(i));
+                    names.add((String) choices.get(i).getSelectedItem());
+                }
+            }
+            if (!enrolled.isEmpty()) {
+                enrollFaces(enrolled, names);
+            }
+            dialog.dispose();
+        });
+        dialog.setSize(400, 500);
+        dialog.setLocationRelativeTo(frame);
+        dialog.setVisible(true);
+    }
+
+    private String showTranscriptReviewDialog(File video, JSONArray rawSegments, FaceData faceData) {
         JSONArray segments = new JSONArray();
         for (int i = 0; i < rawSegments.length(); i++) {
             JSONObject seg = rawSegments.getJSONObject(i);
@@ -1132,12 +2473,7 @@ public class MainInterface {
             double start = seg.getDouble("start");
             double end = seg.getDouble("end");
             if (!speakerNames.containsKey(spk)) {
-                Set<String> possible = new HashSet<>();
-                for (Detection d : faceData.detections) {
-                    if (d.time >= start && d.time <= end) {
-                        possible.add(d.name);
-                    }
-                }
+                Set<String> possible = faceData.timeline.peopleBetween(start, end);
                 if (possible.size() == 1) {
                     speakerNames.put(spk, possible.iterator().next());
                 } else {
@@ -1523,24 +2859,171 @@ public class MainInterface {
         if (ffprobeExecutablePath == null) {
             return false;
         }
+        return "h264".equalsIgnoreCase(mediaInfo(file).videoCodec);
+    }
+
+    /**
+     * Probes a file once for everything the app needs to know about it. The result is kept until
+     * the file changes, so adding a file and analysing it later share one ffprobe call.
+     */
+    private MediaInfo mediaInfo(File file) {
+        MediaInfo cached = mediaInfos.get(file);
+        if (cached != null && cached.isCurrent(file)) {
+            return cached;
+        }
+        double duration = 0;
+        String videoCodec = null;
+        boolean hasAudio = false;
+        boolean probed = false;
         try {
             ProcessBuilder pb = new ProcessBuilder(ffprobeExecutablePath,
                     "-v", "error",
-                    "-select_streams", "v:0",
-                    "-show_entries", "stream=codec_name",
-                    "-of", "default=noprint_wrappers=1:nokey=1",
+                    "-show_entries", "format=duration:stream=codec_type,codec_name",
+                    "-of", "json",
                     file.getAbsolutePath());
             Process process = pb.start();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String codecName = reader.readLine();
-                if (process.waitFor() == 0) {
-                    return "h264".equalsIgnoreCase(codecName);
+            String output;
+            try (InputStream in = process.getInputStream()) {
+                output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            if (process.waitFor() == 0) {
+                JSONObject probe = new JSONObject(output);
+                JSONObject format = probe.optJSONObject("format");
+                if (format != null) {
+                    duration = format.optDouble("duration", 0);
+                    if (Double.isNaN(duration)) duration = 0;
                 }
+                JSONArray streams = probe.optJSONArray("streams");
+                for (int i = 0; streams != null && i < streams.length(); i++) {
+                    JSONObject stream = streams.getJSONObject(i);
+                    String type = stream.optString("codec_type");
+                    if (type.equals("video") && videoCodec == null) {
+                        videoCodec = stream.optString("codec_name", null);
+                    } else if (type.equals("audio")) {
+                        hasAudio = true;
+                    }
+                }
+                probed = true;
             }
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error checking video codec: " + e.getMessage());
+        } catch (IOException | InterruptedException | org.json.JSONException e) {
+            System.err.println("Error probing media file: " + e.getMessage());
+        }
+        MediaInfo info = new MediaInfo(file, probed, duration, videoCodec, hasAudio);
+        mediaInfos.put(file, info);
+        return info;
+    }
+
+    private Path embeddingStoreDir() {
+        return resourceDir.resolve("embeddings");
+    }
+
+    /**
+     * Names the embedding stores of a video; a changed file or a change to any setting in
+     * {@code analysis} that decides which frames are analysed and at what size gets a new key.
+     */
+    private String embeddingStoreKey(File video, String analysis) {
+        try {
+            java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+            String identity = video.getAbsolutePath() + "|" + video.length() + "|" + video.lastModified()
+                    + "|" + analysis;
+            return HexFormat.of().formatHex(digest.digest(identity.getBytes(StandardCharsets.UTF_8)), 0, 16);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void deleteEmbeddingStores(String key) {
+        try {
+            Files.createDirectories(embeddingStoreDir());
+            try (DirectoryStream<Path> stores = Files.newDirectoryStream(embeddingStoreDir(), key + ".*")) {
+                for (Path store : stores) {
+                    Files.deleteIfExists(store);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not remove old embedding stores: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes the embedding stores no video has used for face.embedding_store_days, once a session.
+     * Stores of changed or deleted videos and of old settings are otherwise never read again.
+     */
+    private synchronized void pruneEmbeddingStores() {
+        if (embeddingStoresPruned) return;
+        embeddingStoresPruned = true;
+        int days = intSetting("face.embedding_store_days", 90);
+        if (days <= 0 || !Files.isDirectory(embeddingStoreDir())) return;
+        FileTime cutoff = FileTime.fromMillis(System.currentTimeMillis() - days * 86_400_000L);
+        int deleted = 0;
+        try (DirectoryStream<Path> stores = Files.newDirectoryStream(embeddingStoreDir())) {
+            for (Path store : stores) {
+                if (Files.getLastModifiedTime(store).compareTo(cutoff) < 0 && Files.deleteIfExists(store)) {
+                    deleted++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not prune the embedding stores: " + e.getMessage());
+        }
+        if (deleted > 0) {
+            System.out.println("Removed " + deleted + " unused embedding store files.");
         }
-        return false;
+    }
+
+    /**
+     * Matches the stored embeddings of a video against the current gallery, and offers the unknown
+     * faces of the earlier run again unless the gallery now knows them. Returns null unless every
+     * shard of an earlier run completed and kept its unknown faces.
+     */
+    private FaceData rematchStoredFaces(String key, double threshold) {
+        Pattern shardName = Pattern.compile(Pattern.quote(key) + "\\.(\\d+)of(\\d+)\\.faces");
+        Map<Integer, Path> shards = new TreeMap<>();
+        int shardCount = 0;
+        try {
+            if (!Files.isDirectory(embeddingStoreDir())) return null;
+            try (DirectoryStream<Path> stores = Files.newDirectoryStream(embeddingStoreDir(), key + ".*.faces")) {
+                for (Path store : stores) {
+                    Matcher m = shardName.matcher(store.getFileName().toString());
+                    if (m.matches()) {
+                        shards.put(Integer.parseInt(m.group(1)), store);
+                        shardCount = Integer.parseInt(m.group(2));
+                    }
+                }
+            }
+            if (shardCount == 0 || shards.size() != shardCount) return null;
+            List<StoredFaces> stored = new ArrayList<>();
+            List<UnknownFace> unknownFaces = new ArrayList<>();
+            for (Path store : shards.values()) {
+                StoredFaces faces = StoredFaces.read(store);
+                Path unknownPath = store.resolveSibling(store.getFileName() + ".unknown");
+                // Stores written before the unknown faces were kept cannot offer enrollment.
+                if (!faces.completed || !Files.exists(unknownPath)) return null;
+                stored.add(faces);
+                for (String line : Files.readAllLines(unknownPath, StandardCharsets.UTF_8)) {
+                    if (!line.isBlank()) unknownFaces.add(UnknownFace.fromEvent(new JSONObject(line)));
+                }
+            }
+            FaceData matched = FaceMatcher.match(stored, unknownFaces, currentGallery(), threshold);
+            // Reused stores count as used, so pruning keeps them.
+            FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+            for (Path store : shards.values()) {
+                Files.setLastModifiedTime(store, now);
+                Files.setLastModifiedTime(store.resolveSibling(store.getFileName() + ".unknown"), now);
+            }
+            return matched;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not reuse the stored embeddings: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** The gallery as a matrix, loaded again whenever enrollment has changed its version. */
+    private synchronized GalleryMatrix currentGallery() throws IOException {
+        int version = new JSONObject(Files.readString(galleryDir().resolve("manifest.json"))).getInt("version");
+        if (galleryMatrix == null || galleryMatrix.version != version) {
+            galleryMatrix = GalleryMatrix.load(galleryDir(), version);
+        }
+        return galleryMatrix;
     }
 
     private void updateTagsLabel() {
@@ -1867,23 +3350,414 @@ public class MainInterface {
         }
     }
 
-    private static class Detection {
-        double time;
-        String name;
+    private static class FaceData {
+        List<String> names;
+        FaceTimeline timeline;
+        List<UnknownFace> unknownFaces;
 
-        Detection(double time, String name) {
-            this.time = time;
-            this.name = name;
+        FaceData(List<String> names, FaceTimeline timeline) {
+            this(names, timeline, new ArrayList<>());
+        }
+
+        FaceData(List<String> names, FaceTimeline timeline, List<UnknownFace> unknownFaces) {
+            this.names = names;
+            this.timeline = timeline;
+            this.unknownFaces = unknownFaces;
+        }
+
+        /** Combines the results of several time ranges of the same video. */
+        static FaceData merge(List<FaceData> parts) {
+            if (parts.size() == 1) return parts.get(0);
+            Set<String> names = new TreeSet<>();
+            FaceTimeline.Builder timeline = new FaceTimeline.Builder();
+            List<UnknownFace> unknownFaces = new ArrayList<>();
+            for (FaceData part : parts) {
+                names.addAll(part.names);
+                timeline.addAll(part.timeline);
+                unknownFaces.addAll(part.unknownFaces);
+            }
+            return new FaceData(new ArrayList<>(names), timeline.build(), unknownFaces);
         }
     }
 
-    private static class FaceData {
-        List<String> names;
-        List<Detection> detections;
+    /** A person the recognition did not know, as reported for enrollment. */
+    private static class UnknownFace {
+        final double start;
+        final double end;
+        /** Base64 little-endian float32 embedding, passed to the gallery as is. */
+        final String embedding;
+        final byte[] thumbnail;
+
+        UnknownFace(double start, double end, String embedding, byte[] thumbnail) {
+            this.start = start;
+            this.end = end;
+            this.embedding = embedding;
+            this.thumbnail = thumbnail;
+        }
+
+        float[] embeddingValues() {
+            ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(embedding))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            float[] values = new float[bytes.remaining() / 4];
+            bytes.asFloatBuffer().get(values);
+            return values;
+        }
+
+        static UnknownFace fromEvent(JSONObject event) {
+            return new UnknownFace(event.getDouble("start"), event.getDouble("end"),
+                    event.getString("embedding"), Base64.getDecoder().decode(event.optString("thumbnail", "")));
+        }
+    }
+
+    /**
+     * When each person is on screen, as disjoint time intervals per person in sorted primitive
+     * arrays. Because the intervals of a person do not overlap, their ends are sorted as well and an
+     * overlap query is a single binary search per person.
+     */
+    private static final class FaceTimeline {
+        static final FaceTimeline EMPTY = new FaceTimeline(new String[0], new double[0][], new double[0][]);
+
+        private final String[] people;
+        private final double[][] starts;
+        private final double[][] ends;
+
+        private FaceTimeline(String[] people, double[][] starts, double[][] ends) {
+            this.people = people;
+            this.starts = starts;
+            this.ends = ends;
+        }
+
+        /** Everyone on screen at some point between from and to, in seconds. */
+        Set<String> peopleBetween(double from, double to) {
+            Set<String> found = new TreeSet<>();
+            for (int p = 0; p < people.length; p++) {
+                // The first interval that has not ended before from overlaps if it starts by to.
+                double[] personEnds = ends[p];
+                int low = 0, high = personEnds.length;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (personEnds[mid] < from) low = mid + 1;
+                    else high = mid;
+                }
+                if (low < personEnds.length && starts[p][low] <= to) {
+                    found.add(people[p]);
+                }
+            }
+            return found;
+        }
+
+        /** Collects intervals in any order and per person merges the overlapping ones. */
+        static final class Builder {
+            private final Map<String, double[]> intervals = new TreeMap<>();
+            private final Map<String, Integer> sizes = new HashMap<>();
 
-        FaceData(List<String> names, List<Detection> detections) {
+            void add(String name, double start, double end) {
+                double[] flat = intervals.get(name);
+                int size = sizes.getOrDefault(name, 0);
+                if (flat == null || flat.length < 2 * size + 2) {
+                    flat = Arrays.copyOf(flat == null ? new double[0] : flat, Math.max(8, 4 * size + 2));
+                    intervals.put(name, flat);
+                }
+                flat[2 * size] = Math.min(start, end);
+                flat[2 * size + 1] = Math.max(start, end);
+                sizes.put(name, size + 1);
+            }
+
+            void addAll(FaceTimeline timeline) {
+                for (int p = 0; p < timeline.people.length; p++) {
+                    for (int i = 0; i < timeline.starts[p].length; i++) {
+                        add(timeline.people[p], timeline.starts[p][i], timeline.ends[p][i]);
+                    }
+                }
+            }
+
+            void clear() {
+                intervals.clear();
+                sizes.clear();
+            }
+
+            FaceTimeline build() {
+                int count = intervals.size();
+                String[] people = new String[count];
+                double[][] starts = new double[count][];
+                double[][] ends = new double[count][];
+                int p = 0;
+                for (Map.Entry<String, double[]> entry : intervals.entrySet()) {
+                    int size = sizes.get(entry.getKey());
+                    double[] sortedStarts = new double[size];
+                    double[] sortedEnds = new double[size];
+                    for (int i = 0; i < size; i++) {
+                        sortedStarts[i] = entry.getValue()[2 * i];
+                        sortedEnds[i] = entry.getValue()[2 * i + 1];
+                    }
+                    Arrays.sort(sortedStarts);
+                    Arrays.sort(sortedEnds);
+                    // Sweep both sorted lists: the union is open while more intervals have started
+                    // than ended. Starts win ties, so touching intervals merge as well.
+                    double[] mergedStarts = new double[size];
+                    double[] mergedEnds = new double[size];
+                    int merged = 0, open = 0, e = 0;
+                    for (int st = 0; st < size; ) {
+                        if (sortedStarts[st] <= sortedEnds[e]) {
+                            if (open++ == 0) mergedStarts[merged] = sortedStarts[st];
+                            st++;
+                        } else {
+                            if (--open == 0) mergedEnds[merged++] = sortedEnds[e];
+                            e++;
+                        }
+                    }
+                    if (size > 0) mergedEnds[merged++] = sortedEnds[size - 1];
+                    people[p] = entry.getKey();
+                    starts[p] = Arrays.copyOf(mergedStarts, merged);
+                    ends[p] = Arrays.copyOf(mergedEnds, merged);
+                    p++;
+                }
+                return new FaceTimeline(people, starts, ends);
+            }
+        }
+    }
+
+    /**
+     * The identifications of one face job, read from the embedding store the worker writes (see
+     * EmbeddingStore in video_tagger_CLI.py). The file is mapped rather than read.
+     */
+    private static final class StoredFaces {
+        private static final int HEADER_BYTES = 20;
+        private static final int RECORD_PREFIX_BYTES = 20;
+
+        final int dim;
+        final int count;
+        final boolean completed;
+        final double[] starts;
+        final double[] ends;
+        /** count rows of dim L2-normalised values. */
+        final float[] embeddings;
+
+        private StoredFaces(int dim, int count, boolean completed, double[] starts, double[] ends, float[] embeddings) {
+            this.dim = dim;
+            this.count = count;
+            this.completed = completed;
+            this.starts = starts;
+            this.ends = ends;
+            this.embeddings = embeddings;
+        }
+
+        static StoredFaces read(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                byte[] magic = new byte[4];
+                buffer.get(magic);
+                if (!new String(magic, StandardCharsets.US_ASCII).equals("MTFE") || buffer.getInt() != 1) {
+                    throw new IOException("Not a version 1 embedding store: " + path);
+                }
+                int dim = buffer.getInt();
+                int count = buffer.getInt();
+                boolean completed = (buffer.getInt() & 1) != 0;
+                int stride = RECORD_PREFIX_BYTES + 4 * dim;
+                if ((long) HEADER_BYTES + (long) stride * count > channel.size()) {
+                    throw new IOException("Truncated embedding store: " + path);
+                }
+                double[] starts = new double[count];
+                double[] ends = new double[count];
+                float[] embeddings = new float[count * dim];
+                for (int i = 0; i < count; i++) {
+                    int offset = HEADER_BYTES + i * stride;
+                    starts[i] = buffer.getDouble(offset);
+                    ends[i] = buffer.getDouble(offset + 8);
+                    buffer.slice(offset + RECORD_PREFIX_BYTES, 4 * dim).order(ByteOrder.LITTLE_ENDIAN)
+                            .asFloatBuffer().get(embeddings, i * dim, dim);
+                }
+                return new StoredFaces(dim, count, completed, starts, ends, embeddings);
+            }
+        }
+    }
+
+    /** The gallery embeddings (embeddings.npy) and names of one gallery version. */
+    private static final class GalleryMatrix {
+        private static final Pattern NPY_SHAPE = Pattern.compile("'shape':\\s*\\((\\d+),\\s*(\\d+)\\)");
+
+        final int version;
+        final int rows;
+        final int dim;
+        final float[] embeddings;
+        final String[] names;
+
+        private GalleryMatrix(int version, int rows, int dim, float[] embeddings, String[] names) {
+            this.version = version;
+            this.rows = rows;
+            this.dim = dim;
+            this.embeddings = embeddings;
             this.names = names;
-            this.detections = detections;
+        }
+
+        static GalleryMatrix load(Path galleryDir, int version) throws IOException {
+            JSONArray nameArray = new JSONArray(Files.readString(galleryDir.resolve("names.json")));
+            String[] names = new String[nameArray.length()];
+            for (int i = 0; i < names.length; i++) names[i] = nameArray.getString(i);
+
+            Path npy = galleryDir.resolve("embeddings.npy");
+            try (FileChannel channel = FileChannel.open(npy, StandardOpenOption.READ)) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                // .npy: magic, major and minor version, header length (2 bytes in version 1, 4 after),
+                // a Python dict literal describing the array, then the data.
+                int major = buffer.get(6);
+                int headerLength = major == 1 ? Short.toUnsignedInt(buffer.getShort(8)) : buffer.getInt(8);
+                int dataOffset = (major == 1 ? 10 : 12) + headerLength;
+                byte[] headerBytes = new byte[headerLength];
+                buffer.get(dataOffset - headerLength, headerBytes);
+                String header = new String(headerBytes, StandardCharsets.US_ASCII);
+                Matcher shape = NPY_SHAPE.matcher(header);
+                if (!header.contains("'<f4'") || header.contains("'fortran_order': True") || !shape.find()) {
+                    throw new IOException("Unsupported gallery embeddings: " + header.trim());
+                }
+                int rows = Integer.parseInt(shape.group(1));
+                int dim = Integer.parseInt(shape.group(2));
+                if (rows != names.length) {
+                    throw new IOException("Gallery has " + rows + " embeddings but " + names.length + " names.");
+                }
+                float[] embeddings = new float[rows * dim];
+                buffer.slice(dataOffset, 4 * rows * dim).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(embeddings);
+                return new GalleryMatrix(version, rows, dim, embeddings, names);
+            }
+        }
+    }
+
+    /**
+     * Scores stored embeddings against the gallery in the JVM. Both sides are L2-normalised, so the
+     * squared distance the worker thresholds is 2 - 2 * dot product and the best match is the
+     * largest dot product. Queries are taken in tiles that stay in cache while the gallery streams
+     * past, and the tiles run in parallel.
+     */
+    private static final class FaceMatcher {
+        private static final int TILE = 32;
+
+        /** Matches stored faces, and keeps the unknown faces that still match nobody. */
+        static FaceData match(List<StoredFaces> stores, List<UnknownFace> unknownFaces, GalleryMatrix gallery,
+                              double threshold) throws IOException {
+            float minDot = (float) (1.0 - threshold / 2.0);
+            Set<String> names = new TreeSet<>();
+            FaceTimeline.Builder timeline = new FaceTimeline.Builder();
+            for (StoredFaces stored : stores) {
+                if (stored.count == 0) continue;
+                if (stored.dim != gallery.dim) {
+                    throw new IOException("Stored embeddings have " + stored.dim + " values, the gallery " + gallery.dim + ".");
+                }
+                int[] best = bestMatches(stored.embeddings, stored.count, gallery, minDot);
+                for (int i = 0; i < stored.count; i++) {
+                    if (best[i] >= 0) {
+                        String name = gallery.names[best[i]];
+                        names.add(name);
+                        timeline.add(name, stored.starts[i], stored.ends[i]);
+                    }
+                }
+            }
+            List<UnknownFace> stillUnknown = new ArrayList<>();
+            if (!unknownFaces.isEmpty()) {
+                float[] queries = new float[unknownFaces.size() * gallery.dim];
+                for (int i = 0; i < unknownFaces.size(); i++) {
+                    float[] embedding = unknownFaces.get(i).embeddingValues();
+                    if (embedding.length != gallery.dim) {
+                        throw new IOException("Stored unknown face has " + embedding.length + " values, the gallery " + gallery.dim + ".");
+                    }
+                    System.arraycopy(embedding, 0, queries, i * gallery.dim, gallery.dim);
+                }
+                int[] best = bestMatches(queries, unknownFaces.size(), gallery, minDot);
+                for (int i = 0; i < best.length; i++) {
+                    if (best[i] < 0) stillUnknown.add(unknownFaces.get(i));
+                }
+            }
+            return new FaceData(new ArrayList<>(names), timeline.build(), stillUnknown);
+        }
+
+        /** The gallery row with the largest dot product above minDot for every query, or -1. */
+        private static int[] bestMatches(float[] queries, int count, GalleryMatrix gallery, float minDot) {
+            int dim = gallery.dim;
+            int[] best = new int[count];
+            Arrays.fill(best, -1);
+            IntStream.range(0, (count + TILE - 1) / TILE).parallel().forEach(tile -> {
+                int from = tile * TILE;
+                int to = Math.min(count, from + TILE);
+                float[] bestDot = new float[to - from];
+                Arrays.fill(bestDot, minDot);
+                for (int row = 0; row < gallery.rows; row++) {
+                    for (int q = from; q < to; q++) {
+                        float dot = dot(queries, q * dim, gallery.embeddings, row * dim, dim);
+                        if (dot > bestDot[q - from]) {
+                            bestDot[q - from] = dot;
+                            best[q] = row;
+                        }
+                    }
+                }
+            });
+            return best;
+        }
+
+        /** Four independent sums, so the additions of consecutive elements do not wait on each other. */
+        private static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (int bound = length - 3; i < bound; i += 4) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+                s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+                s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+                s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+            }
+            for (; i < length; i++) {
+                s0 += a[aOffset + i] * b[bOffset + i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+    }
+
+    /** Collects the track events of one face job into a FaceData as they arrive. */
+    private static class FaceDataBuilder {
+        private final Set<String> names = new TreeSet<>();
+        private final FaceTimeline.Builder timeline = new FaceTimeline.Builder();
+        private final List<UnknownFace> unknownFaces = new ArrayList<>();
+        private boolean started;
+        private JSONObject coverage;
+        private boolean audioComplete;
+
+        synchronized void accept(JSONObject event) {
+            switch (event.getString("type")) {
+                case "start" -> {
+                    // A retried job reports everything again.
+                    started = true;
+                    names.clear();
+                    timeline.clear();
+                    unknownFaces.clear();
+                }
+                case "track" -> {
+                    String name = event.getString("name");
+                    names.add(name);
+                    timeline.add(name, event.getDouble("start"), event.getDouble("end"));
+                }
+                case "unknown" -> unknownFaces.add(UnknownFace.fromEvent(event));
+                case "end" -> {
+                    coverage = event.optJSONObject("coverage");
+                    audioComplete = event.optBoolean("audio", false);
+                }
+                default -> { }
+            }
+        }
+
+        synchronized boolean hasStarted() {
+            return started;
+        }
+
+        synchronized JSONObject coverage() {
+            return coverage;
+        }
+
+        /** Whether the job wrote the audio of its whole range. */
+        synchronized boolean audioComplete() {
+            return audioComplete;
+        }
+
+        synchronized FaceData build() {
+            return new FaceData(new ArrayList<>(names), timeline.build(), new ArrayList<>(unknownFaces));
         }
     }
 }
@@ -1,140 +1,534 @@
 import os
 import sys
 import json
+import base64
+import subprocess
+import time
 import torch
 import whisper
 import numpy as np
-from pyannote.audio import Pipeline
+from pyannote.audio import Model, Pipeline
+from pyannote.audio.pipelines import VoiceActivityDetection
 import traceback
+from collections import Counter
 import logging
+from worker_protocol import emit
 
 # By default, do not configure logging to avoid overly verbose output from libraries like Whisper and Pyannote.
 # High-level status and errors are still printed to stdout/stderr.
 
-def transcribe_video(path, hf_token):
-    ffmpeg_paths = ["/opt/homebrew/bin", "/usr/local/bin"]
-    os.environ["PATH"] = os.environ["PATH"] + os.pathsep + os.pathsep.join(ffmpeg_paths)
+# Whisper's sample rate, which every audio reader delivers.
+SAMPLE_RATE = whisper.audio.SAMPLE_RATE
 
-    # Prefer GPU acceleration when available
-    if torch.cuda.is_available():
-        device = "cuda"
-    elif getattr(torch.backends, "mps", None) is not None and torch.backends.mps.is_available():
-        device = "mps"
-    else:
-        print("No GPU or MPS device found. This script requires hardware acceleration.", file=sys.stderr)
-        raise RuntimeError("GPU or MPS device required. CPU fallback is not supported.")
+# Voice activity gating: speech regions are padded and joined across short pauses into the windows
+# Whisper decodes, and a file with less speech than VAD_MIN_SPEECH_SECONDS is not transcribed.
+VAD_PAD_SECONDS = 0.3
+VAD_MERGE_GAP_SECONDS = 1.0
+VAD_MIN_SPEECH_SECONDS = 0.5
 
-    try:
-        audio_waveform = whisper.load_audio(path)
-        if audio_waveform.size == 0:
-            print("Warning: Audio waveform is empty.", file=sys.stderr)
-    except Exception as e:
-        print(f"Error loading audio: {e}", file=sys.stderr)
-        traceback.print_exc(file=sys.stderr)
-        raise
+# Chunked transcription: a job walks its range in windows of WINDOW_SECONDS that overlap by
+# WINDOW_OVERLAP_SECONDS. A segment belongs to the window its midpoint is farther inside, so a
+# sentence cut off at the end of one window is reported whole from the next one, and only once.
+WINDOW_SECONDS = 120.0
+WINDOW_OVERLAP_SECONDS = 10.0
+# A window whose audio ends this much before the window does ends the audio, when the end of
+# the range is not known.
+SHORT_READ_TOLERANCE_SECONDS = 0.02
+# Speakers of different windows are one person from this cosine similarity of their embeddings,
+# unless the job sets speaker_link_similarity.
+SPEAKER_LINK_SIMILARITY = 0.5
+# Characters of the previous window's text Whisper gets as context for the next window.
+PROMPT_CHARS = 200
+
+# Tiered transcription: the first model drafts every window and each following model re-runs only
+# the segments the previous one was unsure of, judged by Whisper's own per-segment statistics.
+DEFAULT_MODELS = "large-v2"
+ESCALATE_AVG_LOGPROB = -0.7
+ESCALATE_NO_SPEECH_PROB = 0.5
+ESCALATE_COMPRESSION_RATIO = 2.4
+ESCALATION_PAD_SECONDS = 0.5
+
+# Seconds between checks of an audio part the face analysis is still writing.
+LIVE_AUDIO_POLL_SECONDS = 0.5
 
-    print("PROGRESS:10", flush=True)
+class PcmPartsReader:
+    """Reads ranges of the audio the face analysis already demuxed to 16 kHz mono float32. The
+    parts are memory mapped, so only the window asked for is ever in memory."""
 
-    model = whisper.load_model("large-v2", device="cpu")
+    def __init__(self, parts):
+        self.parts = [np.memmap(part, dtype="<f4", mode="r") for part in parts if os.path.getsize(part) > 0]
 
+    def read(self, start, end):
+        first, last = int(start * SAMPLE_RATE), int(end * SAMPLE_RATE)
+        pieces = []
+        offset = 0
+        for part in self.parts:
+            lo, hi = max(first, offset), min(last, offset + len(part))
+            if lo < hi:
+                pieces.append(np.array(part[lo - offset:hi - offset]))
+            offset += len(part)
+        return np.concatenate(pieces) if pieces else np.zeros(0, dtype=np.float32)
+
+class LivePcmReader:
+    """Reads the audio the face analysis is demuxing while it still runs. Part i starts at
+    i * part_seconds and grows until a ".done" file next to it says it is complete or a ".failed"
+    one says it never will be; ranges of a failed part are decoded from the media file instead."""
+
+    def __init__(self, parts, part_seconds, fallback):
+        self.parts = list(parts)
+        self.part_seconds = part_seconds
+        self.fallback = fallback
+
+    def read(self, start, end):
+        pieces = []
+        for i, part in enumerate(self.parts):
+            part_start = i * self.part_seconds
+            part_end = part_start + self.part_seconds if i < len(self.parts) - 1 else float("inf")
+            lo, hi = max(start, part_start), min(end, part_end)
+            if lo >= hi:
+                continue
+            first, last = int((lo - part_start) * SAMPLE_RATE), int((hi - part_start) * SAMPLE_RATE)
+            piece = self._read_part(part, first, last)
+            if piece is None:
+                piece = self.fallback.read(lo, hi)
+            if i < len(self.parts) - 1 and len(piece) < last - first:
+                # A part whose audio stops early keeps the parts after it at their own time.
+                piece = np.concatenate([piece, np.zeros(last - first - len(piece), dtype=np.float32)])
+            pieces.append(piece)
+        return np.concatenate(pieces) if pieces else np.zeros(0, dtype=np.float32)
+
+    @staticmethod
+    def _read_part(path, first, last):
+        """Samples [first, last) of a part once they are written, fewer at its end, or None if it failed."""
+        while True:
+            if os.path.exists(path + ".failed"):
+                return None
+            # Checked before the size, so a part seen complete is read at its final size.
+            done = os.path.exists(path + ".done")
+            size = os.path.getsize(path) // 4 if os.path.exists(path) else 0
+            if done or size >= last:
+                available = max(0, min(last, size) - first)
+                with open(path, "rb") as part:
+                    part.seek(first * 4)
+                    samples = np.frombuffer(part.read(available * 4), dtype="<f4")
+                # A retried face job rewrites its part from the start; read again once it caught up.
+                if len(samples) == available:
+                    return samples
+            time.sleep(LIVE_AUDIO_POLL_SECONDS)
+
+class FfmpegAudioReader:
+    """Decodes just the range asked for from the media file."""
+
+    def __init__(self, path):
+        self.path = path
+
+    def read(self, start, end):
+        cmd = ["ffmpeg", "-nostdin", "-v", "error", "-ss", f"{start:.3f}", "-t", f"{end - start:.3f}",
+               "-i", self.path, "-vn", "-ac", "1", "-ar", str(SAMPLE_RATE), "-f", "f32le", "-"]
+        return np.frombuffer(subprocess.run(cmd, capture_output=True, check=True).stdout, dtype="<f4")
+
+def select_device():
+    # Prefer GPU acceleration when available
+    if torch.cuda.is_available():
+        return "cuda"
+    if getattr(torch.backends, "mps", None) is not None and torch.backends.mps.is_available():
+        return "mps"
+    print("No GPU or MPS device found. This script requires hardware acceleration.", file=sys.stderr)
+    raise RuntimeError("GPU or MPS device required. CPU fallback is not supported.")
+
+def move_model(model, device):
+    # The sparse alignment heads cannot move to MPS, so they stay on the CPU as a plain buffer.
     alignment_heads = model.alignment_heads
     model.alignment_heads = None
     model = model.to(device)
     model.register_buffer("alignment_heads", alignment_heads, persistent=False)
+    return model
 
-    _original_dtw = whisper.timing.dtw
-    dtw_cpu = whisper.timing.dtw_cpu
+class SpeechModels:
+    """The Whisper tiers, the pyannote diarization pipeline and the voice activity detector, loaded
+    once and kept on the device for every job of a worker."""
 
-    def patched_dtw(x: torch.Tensor, *args, **kwargs):
-        if not torch.is_tensor(x) or x.device.type != "mps":
-            return _original_dtw(x, *args, **kwargs)
-        return dtw_cpu(x.cpu().double().numpy(), *args, **kwargs)
+    def __init__(self, hf_token, model_names=DEFAULT_MODELS):
+        ffmpeg_paths = ["/opt/homebrew/bin", "/usr/local/bin"]
+        os.environ["PATH"] = os.environ["PATH"] + os.pathsep + os.pathsep.join(ffmpeg_paths)
 
-    whisper.timing.dtw = patched_dtw
+        self.device = select_device()
+        # Set once Whisper had to retry on the CPU during the current job.
+        self.cpu_fallback = False
+        # Fastest first; every [name, model] pair is one tier.
+        self.tiers = [[name, move_model(whisper.load_model(name, device="cpu"), self.device)]
+                      for name in model_names.split(",") if name.strip()]
 
-    # Disable fp16 to prevent numerical instability on Apple Silicon devices.
-    transcribe_options = {"word_timestamps": True, "fp16": False, "verbose": False}
+        _original_dtw = whisper.timing.dtw
+        dtw_cpu = whisper.timing.dtw_cpu
 
-    result = model.transcribe(audio_waveform, **transcribe_options)
+        def patched_dtw(x: torch.Tensor, *args, **kwargs):
+            if not torch.is_tensor(x) or x.device.type != "mps":
+                return _original_dtw(x, *args, **kwargs)
+            return dtw_cpu(x.cpu().double().numpy(), *args, **kwargs)
 
-    # Check if MPS failed to produce text (common issue on specific PyTorch versions on Mac)
-    if not result.get("text", "").strip() and device == "mps":
-        print("Warning: Whisper produced no text on MPS. This is a known PyTorch/MPS issue.", file=sys.stderr)
-        print("Attempting fallback: Retrying transcription on CPU...", file=sys.stderr)
+        whisper.timing.dtw = patched_dtw
 
-        # Move model to CPU and retry
-        model = model.to("cpu")
-        result = model.transcribe(audio_waveform, **transcribe_options)
+        self.diarization = Pipeline.from_pretrained(
+            "pyannote/speaker-diarization-3.1",
+            token=hf_token,
+        )
+        # We use the original 'device' variable here to ensure Diarization still uses GPU
+        self.diarization.to(torch.device(self.device))
 
-        if result.get("text", "").strip():
-            print("Success: CPU fallback produced text.", file=sys.stderr)
+        # The diarization pipeline is built on the same segmentation model, so this is already cached.
+        self.vad = VoiceActivityDetection(segmentation=Model.from_pretrained("pyannote/segmentation-3.0", token=hf_token))
+        self.vad.instantiate({"min_duration_on": 0.0, "min_duration_off": 0.0})
+        self.vad.to(torch.device(self.device))
 
-    if not result.get("text", "").strip():
-        print("Warning: Whisper produced no text.", file=sys.stderr)
-        print(f"Full transcription result: {result}", file=sys.stderr)
+def speech_windows(models, audio_waveform):
+    """Runs the voice activity pre-pass. Returns the padded, merged speech windows Whisper decodes
+    and the speech regions themselves, both in seconds."""
+    activity = models.vad({"waveform": torch.from_numpy(audio_waveform).unsqueeze(0), "sample_rate": SAMPLE_RATE})
+    regions = [(segment.start, segment.end) for segment in activity.get_timeline().support()]
+    duration = len(audio_waveform) / SAMPLE_RATE
+    windows = []
+    for start, end in regions:
+        start, end = max(0.0, start - VAD_PAD_SECONDS), min(duration, end + VAD_PAD_SECONDS)
+        if windows and start - windows[-1][1] <= VAD_MERGE_GAP_SECONDS:
+            windows[-1][1] = end
+        else:
+            windows.append([start, end])
+    return windows, regions
 
-    print("PROGRESS:60", flush=True)
+class SpeakerRegistry:
+    """Gives the speakers of every window of a job one set of labels by the similarity of their
+    diarization embeddings. New speakers are reported with their embedding, so speakers of jobs
+    that ran on other workers can be linked the same way."""
 
-    diarize_model = Pipeline.from_pretrained(
-        "pyannote/speaker-diarization-3.1",
-        token=hf_token,
-    )
-    # We use the original 'device' variable here to ensure Diarization still uses GPU
-    diarize_model.to(torch.device(device))
+    def __init__(self, similarity=SPEAKER_LINK_SIMILARITY):
+        self.similarity = similarity
+        self.centroids = []
+        self.labels = 0
 
-    audio_for_diarization = {
-        "waveform": torch.from_numpy(audio_waveform).unsqueeze(0),
-        "sample_rate": whisper.audio.SAMPLE_RATE,
-    }
+    def _new_label(self):
+        label = f"S{self.labels}"
+        self.labels += 1
+        return label
 
-    diarization_out = diarize_model(audio_for_diarization)
+    def link(self, embedding):
+        if embedding is None or not np.all(np.isfinite(embedding)) or not np.any(embedding):
+            # Too little speech for an embedding; the speaker cannot be recognised in another window.
+            return self._new_label()
+        embedding = np.asarray(embedding, dtype=np.float32)
+        embedding /= np.linalg.norm(embedding)
+        best, best_similarity = None, self.similarity
+        for i, (label, centroid) in enumerate(self.centroids):
+            similarity = float(np.dot(centroid / np.linalg.norm(centroid), embedding))
+            if similarity >= best_similarity:
+                best, best_similarity = i, similarity
+        if best is not None:
+            label, centroid = self.centroids[best]
+            centroid += embedding
+            return label
+        label = self._new_label()
+        self.centroids.append((label, embedding.copy()))
+        emit("speaker", label=label, embedding=base64.b64encode(embedding.astype("<f4").tobytes()).decode("ascii"))
+        return label
+
+def speaker_turns(models, audio_waveform, registry):
+    """Diarizes one window. Returns its speaker turns in window time with job wide labels."""
+    diarization_out = models.diarization({
+        "waveform": torch.from_numpy(audio_waveform).unsqueeze(0),
+        "sample_rate": SAMPLE_RATE,
+    })
 
+    embeddings = None
     if hasattr(diarization_out, 'speaker_diarization') and diarization_out.speaker_diarization:
         annotation = diarization_out.speaker_diarization
+        embeddings = getattr(diarization_out, 'speaker_embeddings', None)
     else:
         annotation = diarization_out
 
-    segments = []
+    turns = []
     if annotation:
+        # The embeddings are in the order of the labels.
+        labels = {local: registry.link(embeddings[i] if embeddings is not None and i < len(embeddings) else None)
+                  for i, local in enumerate(annotation.labels())}
         for turn, _, speaker in annotation.itertracks(yield_label=True):
-            segments.append({"start": turn.start, "end": turn.end, "speaker": speaker})
-
-    for seg in result.get("segments", []):
-        word_speakers = []
-        for word in seg.get("words", []):
-            mid = (word["start"] + word["end"]) / 2
-            spk = next(
-                (d["speaker"] for d in segments if d["start"] <= mid <= d["end"]),
-                None,
-            )
-            if spk is not None:
-                word["speaker"] = spk
-                word_speakers.append(spk)
+            turns.append({"start": turn.start, "end": turn.end, "speaker": labels[speaker]})
+    return turns
+
+def run_whisper(models, tier, audio_waveform, transcribe_options):
+    name, model = models.tiers[tier]
+    result = model.transcribe(audio_waveform, **transcribe_options)
+
+    # Check if MPS failed to produce text (common issue on specific PyTorch versions on Mac)
+    if not result.get("text", "").strip() and models.device == "mps":
+        print(f"Warning: Whisper {name} produced no text on MPS. This is a known PyTorch/MPS issue.", file=sys.stderr)
+        print("Attempting fallback: Retrying transcription on CPU...", file=sys.stderr)
+        emit("log", message=f"Whisper {name} produced no text on MPS, retrying on the CPU.")
+        models.cpu_fallback = True
+
+        # Retry on the CPU, then move the model back for the next window.
+        model = model.to("cpu")
+        try:
+            result = model.transcribe(audio_waveform, **transcribe_options)
+        finally:
+            models.tiers[tier][1] = move_model(model, models.device)
+
+        if result.get("text", "").strip():
+            print("Success: CPU fallback produced text.", file=sys.stderr)
+    return result.get("segments", [])
+
+def needs_escalation(segment, thresholds):
+    return (segment.get("avg_logprob", 0.0) < thresholds["avg_logprob"]
+            or segment.get("no_speech_prob", 0.0) > thresholds["no_speech_prob"]
+            or segment.get("compression_ratio", 0.0) > thresholds["compression_ratio"])
+
+def merge_windows(ranges, duration):
+    windows = []
+    for start, end in sorted(ranges):
+        start, end = max(0.0, start - ESCALATION_PAD_SECONDS), min(duration, end + ESCALATION_PAD_SECONDS)
+        if windows and start <= windows[-1][1]:
+            windows[-1][1] = max(windows[-1][1], end)
+        else:
+            windows.append([start, end])
+    return windows
+
+def transcribe_window(models, audio_waveform, speech, prompt, thresholds, stats):
+    """Runs the Whisper tiers over the speech windows of one audio window; times are relative to it.
+
+    The first tier drafts everything. Each later tier decodes only the padded ranges of the segments
+    the tier before it was unsure of, and its segments replace the draft's within those ranges.
+    """
+    # Disable fp16 to prevent numerical instability on Apple Silicon devices.
+    transcribe_options = {"word_timestamps": True, "fp16": False, "verbose": False, "initial_prompt": prompt}
+    if speech is not None:
+        # Whisper seeks from speech window to speech window and never decodes the audio between them.
+        transcribe_options["clip_timestamps"] = [t for window in speech for t in window]
+
+    segments = run_whisper(models, 0, audio_waveform, transcribe_options)
+    stats["segments"] += len(segments)
+    duration = len(audio_waveform) / SAMPLE_RATE
+    for tier in range(1, len(models.tiers)):
+        unsure = [(seg["start"], seg["end"]) for seg in segments if needs_escalation(seg, thresholds)]
+        if not unsure:
+            break
+        stats["escalated"][models.tiers[tier][0]] += len(unsure)
+        windows = merge_windows(unsure, duration)
+        options = dict(transcribe_options, clip_timestamps=[t for window in windows for t in window])
+        redone = run_whisper(models, tier, audio_waveform, options)
+
+        def inside(seg):
+            middle = (seg["start"] + seg["end"]) / 2
+            return any(start <= middle < end for start, end in windows)
+        segments = sorted([seg for seg in segments if not inside(seg)] + [seg for seg in redone if inside(seg)],
+                          key=lambda seg: seg["start"])
+    return segments
+
+def assign_speakers(segments, turns):
+    """Gives every word the speaker whose turn overlaps it most and every segment the speaker of
+    most of its words.
+
+    Words and turns are swept once in time order. Only the turns overlapping the current word are
+    kept, which is a handful even where people talk over each other, so the cost is linear in the
+    number of words and turns; both arrive almost sorted, which the sorts below take in linear time.
+    """
+    turns = sorted(turns, key=lambda turn: turn["start"])
+    words = sorted((word for seg in segments for word in seg.get("words", [])), key=lambda word: word["start"])
+    active = []
+    next_turn = 0
+    for word in words:
+        while next_turn < len(turns) and turns[next_turn]["start"] <= word["end"]:
+            active.append(turns[next_turn])
+            next_turn += 1
+        active = [turn for turn in active if turn["end"] >= word["start"]]
+
+        best, best_overlap = None, 0.0
+        for turn in active:
+            # Turns an earlier, longer word let in can start after this one ends.
+            if turn["start"] > word["end"]:
+                continue
+            if word["end"] <= word["start"]:
+                # A zero length word has no overlap to weigh, the first turn containing it is taken.
+                if turn["start"] <= word["start"] <= turn["end"]:
+                    best = turn
+                    break
+                continue
+            overlap = min(turn["end"], word["end"]) - max(turn["start"], word["start"])
+            if overlap > best_overlap:
+                best, best_overlap = turn, overlap
+        if best is not None:
+            word["speaker"] = best["speaker"]
+
+    for seg in segments:
+        word_speakers = Counter(word["speaker"] for word in seg.get("words", []) if "speaker" in word)
         if word_speakers:
-            seg["speaker"] = max(set(word_speakers), key=word_speakers.count)
+            seg["speaker"] = word_speakers.most_common(1)[0][0]
+
+def transcribe_range(models, reader, start, duration, vad=True, thresholds=None,
+                     link_similarity=SPEAKER_LINK_SIMILARITY):
+    """Transcribes [start, start + duration) of the audio, or from start to its end when duration is
+    0, one window at a time. Memory stays bounded by the window length however long the file is,
+    and the segments of each window are reported as soon as it is done."""
+    end = start + duration if duration > 0 else None
+    thresholds = thresholds or {"avg_logprob": ESCALATE_AVG_LOGPROB, "no_speech_prob": ESCALATE_NO_SPEECH_PROB,
+                                "compression_ratio": ESCALATE_COMPRESSION_RATIO}
+    stats = {"segments": 0, "escalated": {name: 0 for name, _ in models.tiers[1:]}}
+    registry = SpeakerRegistry(link_similarity)
+    prompt = None
+    speech_seconds = 0.0
+    covered_seconds = 0.0
+    window_start = max(0.0, start - WINDOW_OVERLAP_SECONDS)
+    first = True
+    percent = 0
 
-    filtered = [s for s in result.get("segments", []) if s.get("text", "").strip()]
-    result["segments"] = filtered
-    print("PROGRESS:90", flush=True)
-    return result
+    def report(status):
+        if models.cpu_fallback and status == "Detecting Speech":
+            status += " (Falling back to slow mode)"
+        emit("progress", percent=percent, status=status)
+
+    while True:
+        window_end = window_start + WINDOW_SECONDS
+        if end is not None:
+            window_end = min(window_end, end + WINDOW_OVERLAP_SECONDS)
+        audio_waveform = reader.read(window_start, window_end)
+        if audio_waveform.size == 0:
+            if first:
+                print("Warning: Audio waveform is empty.", file=sys.stderr)
+            break
+        audio_end = window_start + len(audio_waveform) / SAMPLE_RATE
+        # The window that reaches the end of the range is the last one. Audio ending early, or the
+        # end of a range of unknown length, shows as a read cut short by more than rounding.
+        reached_end = end is not None and window_end >= end + WINDOW_OVERLAP_SECONDS
+        last = reached_end or audio_end < window_end - SHORT_READ_TOLERANCE_SECONDS
+        # The part of the range this window reports, in absolute seconds.
+        owned_start = start if first else window_start + WINDOW_OVERLAP_SECONDS / 2
+        owned_end = min(audio_end, end if end is not None else audio_end) if last else window_end - WINDOW_OVERLAP_SECONDS / 2
+        if end is not None:
+            owned_end = min(owned_end, end)
+        covered_seconds += max(0.0, owned_end - owned_start)
+
+        speech = None
+        window_speech = None
+        if vad:
+            speech, regions = speech_windows(models, audio_waveform)
+            window_speech = sum(region_end - region_start for region_start, region_end in regions)
+            for speech_start, speech_end in regions:
+                speech_seconds += max(0.0, min(owned_end, window_start + speech_end) - max(owned_start, window_start + speech_start))
+            emit("vad", speech_seconds=round(speech_seconds, 3), duration=round(covered_seconds, 3),
+                 ratio=round(min(1.0, speech_seconds / covered_seconds), 4) if covered_seconds > 0 else 0.0)
+
+        # A window of music, ambience or silence is neither transcribed nor diarized.
+        if window_speech is None or window_speech >= VAD_MIN_SPEECH_SECONDS:
+            report("Detecting Speech")
+            segments = transcribe_window(models, audio_waveform, speech, prompt, thresholds, stats)
+            if segments:
+                report("Identifying Speakers")
+                assign_speakers(segments, speaker_turns(models, audio_waveform, registry))
+            owned_text = []
+            # Only what the transcript needs is sent; the per-word timings stay here.
+            for seg in segments:
+                seg_start, seg_end = window_start + seg["start"], window_start + seg["end"]
+                if not seg.get("text", "").strip() or not owned_start <= (seg_start + seg_end) / 2 < owned_end:
+                    continue
+                owned_text.append(seg["text"])
+                emit("segment", flush=False, start=round(seg_start, 3), end=round(seg_end, 3),
+                     text=seg["text"], speaker=seg.get("speaker"))
+            prompt = "".join(owned_text)[-PROMPT_CHARS:] or prompt
+
+        if end is not None and end > start:
+            percent = min(99, int((owned_end - start) / (end - start) * 100))
+            report("Detecting Speech")
+        if last:
+            break
+        first = False
+        window_start = window_end - WINDOW_OVERLAP_SECONDS
+
+    if len(models.tiers) > 1:
+        escalated = ", ".join(f"{count} to {name}" for name, count in stats["escalated"].items())
+        emit("log", message=f"{models.tiers[0][0]} drafted {stats['segments']} segments, escalated {escalated}.")
+
+def run_job(models, job_id, job):
+    emit("start", id=job_id)
+    models.cpu_fallback = False
+    emit("progress", percent=0)
+    audio_parts = job.get("audio") or ()
+    reader = FfmpegAudioReader(job["video_path"])
+    if audio_parts and job.get("audio_live"):
+        reader = LivePcmReader(audio_parts, float(job.get("audio_part_seconds", 0.0)), reader)
+    elif audio_parts:
+        reader = PcmPartsReader(audio_parts)
+    thresholds = {
+        "avg_logprob": float(job.get("escalate_avg_logprob", ESCALATE_AVG_LOGPROB)),
+        "no_speech_prob": float(job.get("escalate_no_speech_prob", ESCALATE_NO_SPEECH_PROB)),
+        "compression_ratio": float(job.get("escalate_compression_ratio", ESCALATE_COMPRESSION_RATIO)),
+    }
+    transcribe_range(models, reader, float(job.get("start", 0.0)), float(job.get("duration", 0.0)),
+                     bool(job.get("vad", True)), thresholds,
+                     float(job.get("speaker_link_similarity", SPEAKER_LINK_SIMILARITY)))
+    emit("progress", percent=100)
+    emit("end", id=job_id)
+
+def run_worker(models):
+    """Keeps the models loaded and transcribes one job per stdin line until stdin is closed.
+
+    A job is a JSON object with "id", "video_path", optionally the "audio" parts the face analysis
+    demuxed, with "audio_live" and "audio_part_seconds" when it is still writing them, the "start" and "duration" of a chunk in seconds, "vad": false to transcribe
+    without the voice activity pre-pass, the escalate_avg_logprob, escalate_no_speech_prob and
+    escalate_compression_ratio thresholds of the model tiers and the speaker_link_similarity of
+    its windows' speakers. Every job starts with a start event
+    and ends with an end or error event.
+    """
+    emit("hello", worker="speech", pid=os.getpid())
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        job_id = ""
+        try:
+            job = json.loads(line)
+            job_id = str(job.get("id", ""))
+            run_job(models, job_id, job)
+        except Exception as e:
+            traceback.print_exc(file=sys.stderr)
+            sys.stderr.flush()
+            emit("error", id=job_id, message=str(e) or e.__class__.__name__)
+        finally:
+            if torch.cuda.is_available():
+                # Cached activations of a long file are not needed by the next one.
+                torch.cuda.empty_cache()
 
 def main():
-    if len(sys.argv) < 3:
-        print("Usage: python detect_speech.py <video_file> <hf_token>", file=sys.stderr)
+    options = [arg for arg in sys.argv[1:] if arg.startswith("--")]
+    arguments = [arg for arg in sys.argv[1:] if not arg.startswith("--")]
+    worker = "--worker" in options
+    if len(arguments) < (1 if worker else 2):
+        print("Usage: python detect_speech.py [--models=<fast>,<accurate>] <video_file> <hf_token> [<audio_part.f32> ...]", file=sys.stderr)
+        print("       python detect_speech.py --worker [--models=<fast>,<accurate>] <hf_token>", file=sys.stderr)
+        sys.exit(1)
+
+    model_names = next((option.split("=", 1)[1] for option in options if option.startswith("--models=")), DEFAULT_MODELS)
+    video = "" if worker else arguments[0]
+    token = arguments[0] if worker else arguments[1]
+    audio_parts = arguments[2:]
+
+    try:
+        models = SpeechModels(token, model_names)
+    except Exception as e:
+        print("The speech models could not be loaded:", file=sys.stderr)
+        traceback.print_exc(file=sys.stderr)
+        if not worker:
+            emit("error", id=video, message=str(e) or e.__class__.__name__)
         sys.exit(1)
 
-    video = sys.argv[1]
-    token = sys.argv[2]
+    if worker:
+        run_worker(models)
+        return
 
-    print("PROGRESS:0", flush=True)
     try:
-        result = transcribe_video(video, token)
-        print("PROGRESS:100", flush=True)
-        print("RESULTS:" + json.dumps(result), flush=True)
-    except Exception:
+        run_job(models, video, {"video_path": video, "audio": audio_parts})
+    except Exception as e:
         print("An error occurred during speech detection:", file=sys.stderr)
         traceback.print_exc(file=sys.stderr)
+        emit("error", id=video, message=str(e) or e.__class__.__name__)
         sys.exit(1)
 
 if __name__ == "__main__":
-    main()
\ No newline at end of file
+    main()
@@ -0,0 +1,253 @@
+"""The face gallery: the known faces MediaTagger recognises, kept in ~/.mediatagger/gallery.
+
+    embeddings.npy   every enrolled face embedding, L2-normalised float32 rows
+    names.json       the name of every row
+    faces.index      the FAISS index searched by the face workers
+    manifest.json    version, index type and row counts
+
+embeddings.npy and names.json are the source of truth. The index is an exact flat index while
+the gallery is small and an HNSW graph (or IVF lists) once it grows, so a lookup costs about the
+same at tens of thousands of faces as at hundreds. All three use squared L2 distance, so the
+recognition threshold means the same for every index type.
+
+Writers hold an exclusive lock, write new files next to the old ones and rename them into place,
+and bump the manifest version last. Workers read under a shared lock, so the index and names they
+load always belong together, and reload when the version changes. Where FAISS can map an index
+read-only, concurrent workers share one copy of it in the page cache: the inverted lists of IVF,
+and flat and HNSW vectors with FAISS builds that have IO_FLAG_MMAP_IFC. Otherwise every worker
+holds its own copy.
+"""
+import argparse
+import base64
+import fcntl
+import json
+import math
+import os
+import sys
+import traceback
+
+import faiss
+import numpy as np
+
+from worker_protocol import emit
+
+EMBEDDINGS_FILE = "embeddings.npy"
+NAMES_FILE = "names.json"
+INDEX_FILE = "faces.index"
+MANIFEST_FILE = "manifest.json"
+LOCK_FILE = ".lock"
+
+# auto switches from the exact flat index to HNSW at this many faces.
+HNSW_THRESHOLD = 2000
+HNSW_NEIGHBOURS = 32
+HNSW_EF_CONSTRUCTION = 80
+HNSW_EF_SEARCH = 64
+# IVF is retrained once the gallery has grown this much since the last training.
+IVF_RETRAIN_GROWTH = 4
+IVF_NPROBE = 16
+
+
+class GalleryLock:
+    """Exclusive for writers, shared for readers."""
+
+    def __init__(self, gallery_dir, shared=False):
+        os.makedirs(gallery_dir, exist_ok=True)
+        self.path = os.path.join(gallery_dir, LOCK_FILE)
+        self.mode = fcntl.LOCK_SH if shared else fcntl.LOCK_EX
+
+    def __enter__(self):
+        self.file = open(self.path, "a")
+        fcntl.flock(self.file, self.mode)
+        return self
+
+    def __exit__(self, *exc):
+        fcntl.flock(self.file, fcntl.LOCK_UN)
+        self.file.close()
+
+
+def read_manifest(gallery_dir):
+    try:
+        with open(os.path.join(gallery_dir, MANIFEST_FILE)) as f:
+            return json.load(f)
+    except (OSError, ValueError):
+        return None
+
+
+def current_version(gallery_dir):
+    manifest = read_manifest(gallery_dir)
+    return manifest["version"] if manifest else 0
+
+
+def _replace(gallery_dir, name, write):
+    """Writes a gallery file through a temporary file so readers never see it half written."""
+    path = os.path.join(gallery_dir, name)
+    temp = path + ".tmp"
+    write(temp)
+    os.replace(temp, path)
+
+
+def _write_json(data):
+    def write(path):
+        with open(path, "w") as f:
+            json.dump(data, f)
+    return write
+
+
+def _write_npy(array):
+    def write(path):
+        with open(path, "wb") as f:
+            np.save(f, array)
+    return write
+
+
+def resolve_index_type(requested, count):
+    if requested == "auto":
+        return "hnsw" if count >= HNSW_THRESHOLD else "flat"
+    return requested
+
+
+def build_index(index_type, embeddings):
+    dim = embeddings.shape[1]
+    if index_type == "hnsw":
+        index = faiss.IndexHNSWFlat(dim, HNSW_NEIGHBOURS)
+        index.hnsw.efConstruction = HNSW_EF_CONSTRUCTION
+        index.hnsw.efSearch = HNSW_EF_SEARCH
+    elif index_type == "ivf":
+        # About 4 * sqrt(n) lists, with enough training points per list for k-means.
+        nlist = max(1, min(int(4 * math.sqrt(len(embeddings))), len(embeddings) // 39))
+        index = faiss.IndexIVFFlat(faiss.IndexFlatL2(dim), dim, nlist)
+        index.train(embeddings)
+        index.nprobe = min(IVF_NPROBE, nlist)
+    else:
+        index = faiss.IndexFlatL2(dim)
+    index.add(embeddings)
+    return index
+
+
+def mmap_flags(index_type):
+    """The FAISS read flags that map an index of this type instead of copying it, or 0."""
+    if index_type == "ivf":
+        # IO_FLAG_MMAP maps only inverted lists.
+        return faiss.IO_FLAG_MMAP | faiss.IO_FLAG_READ_ONLY
+    # Flat codes, which HNSW keeps its vectors in as well, need the newer flag.
+    return getattr(faiss, "IO_FLAG_MMAP_IFC", 0)
+
+
+def load(gallery_dir):
+    """Returns (index, names, version). The index is memory mapped where FAISS supports it."""
+    with GalleryLock(gallery_dir, shared=True):
+        manifest = read_manifest(gallery_dir)
+        if manifest is None:
+            raise RuntimeError(f"No face gallery in '{gallery_dir}'.")
+        index_path = os.path.join(gallery_dir, INDEX_FILE)
+        flags = mmap_flags(manifest["index_type"])
+        try:
+            index = faiss.read_index(index_path, flags)
+        except RuntimeError:
+            # A FAISS build that cannot map this index reads it into memory.
+            index = faiss.read_index(index_path)
+        with open(os.path.join(gallery_dir, NAMES_FILE)) as f:
+            names = json.load(f)
+    if manifest["index_type"] == "hnsw":
+        faiss.downcast_index(index).hnsw.efSearch = HNSW_EF_SEARCH
+    elif manifest["index_type"] == "ivf":
+        faiss.extract_index_ivf(index).nprobe = IVF_NPROBE
+    return index, names, manifest["version"]
+
+
+def seed(gallery_dir, index_path, names_path, index_type="auto"):
+    """Creates the gallery from a flat index and its names, unless it already exists."""
+    with GalleryLock(gallery_dir):
+        if read_manifest(gallery_dir) is not None:
+            return False
+        flat = faiss.read_index(index_path)
+        embeddings = flat.reconstruct_n(0, flat.ntotal).astype("float32")
+        with open(names_path) as f:
+            names = json.load(f)
+        _store(gallery_dir, embeddings, names, index_type, None, trained_count=len(names))
+        return True
+
+
+def enroll(gallery_dir, entries, index_type="auto"):
+    """Adds (name, embedding) pairs and updates the index. Returns the new manifest."""
+    with GalleryLock(gallery_dir):
+        manifest = read_manifest(gallery_dir)
+        if manifest is None:
+            raise RuntimeError(f"No face gallery in '{gallery_dir}'.")
+        added = np.asarray([embedding for _, embedding in entries], dtype="float32")
+        added /= np.linalg.norm(added, axis=1, keepdims=True)
+        embeddings = np.concatenate([np.load(os.path.join(gallery_dir, EMBEDDINGS_FILE)), added])
+        with open(os.path.join(gallery_dir, NAMES_FILE)) as f:
+            names = json.load(f) + [name for name, _ in entries]
+        return _store(gallery_dir, embeddings, names, index_type, manifest, added)
+
+
+def _store(gallery_dir, embeddings, names, requested_type, manifest, added=None, trained_count=None):
+    index_type = resolve_index_type(requested_type, len(names))
+    trained_count = trained_count or (manifest or {}).get("trained_count", len(names))
+    same_type = manifest is not None and manifest["index_type"] == index_type
+    if same_type and added is not None and not (
+            index_type == "ivf" and len(names) >= IVF_RETRAIN_GROWTH * trained_count):
+        # Flat, HNSW and a still representative IVF all take new faces without a rebuild.
+        index = faiss.read_index(os.path.join(gallery_dir, INDEX_FILE))
+        index.add(added)
+    else:
+        index = build_index(index_type, embeddings)
+        trained_count = len(names)
+    _replace(gallery_dir, EMBEDDINGS_FILE, _write_npy(embeddings))
+    _replace(gallery_dir, NAMES_FILE, _write_json(names))
+    _replace(gallery_dir, INDEX_FILE, lambda path: faiss.write_index(index, path))
+    manifest = {
+        "version": (manifest or {}).get("version", 0) + 1,
+        "index_type": index_type,
+        "count": len(names),
+        "identities": len(set(names)),
+        "trained_count": trained_count,
+    }
+    _replace(gallery_dir, MANIFEST_FILE, _write_json(manifest))
+    return manifest
+
+
+def decode_embedding(text):
+    return np.frombuffer(base64.b64decode(text), dtype="<f4")
+
+
+def encode_embedding(embedding):
+    return base64.b64encode(np.asarray(embedding, dtype="<f4").tobytes()).decode("ascii")
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Manage the MediaTagger face gallery.")
+    parser.add_argument("command", choices=["seed", "enroll", "info"],
+                        help="seed creates the gallery from a flat index, enroll adds the faces given as "
+                             "JSON lines {\"name\", \"embedding\"} on stdin, info prints the manifest.")
+    parser.add_argument("--gallery", required=True, help="Gallery directory.")
+    parser.add_argument("--index", help="seed: flat FAISS index to start from.")
+    parser.add_argument("--names", help="seed: names JSON file of that index.")
+    parser.add_argument("--index-type", choices=["auto", "flat", "hnsw", "ivf"], default="auto",
+                        help=f"Index to build. Default: auto, flat below {HNSW_THRESHOLD} faces and HNSW above.")
+    args = parser.parse_args()
+
+    emit("start", id=args.command)
+    try:
+        if args.command == "seed":
+            seed(args.gallery, args.index, args.names, args.index_type)
+        elif args.command == "enroll":
+            entries = []
+            for line in sys.stdin:
+                if line.strip():
+                    entry = json.loads(line)
+                    entries.append((entry["name"], decode_embedding(entry["embedding"])))
+            if entries:
+                enroll(args.gallery, entries, args.index_type)
+            emit("log", message=f"Enrolled {len(entries)} faces.")
+        emit("log", message=f"Gallery: {json.dumps(read_manifest(args.gallery))}")
+        emit("end", id=args.command)
+    except Exception as e:
+        traceback.print_exc(file=sys.stderr)
+        emit("error", id=args.command, message=str(e) or e.__class__.__name__)
+        sys.exit(1)
+
+
+if __name__ == "__main__":
+    main()
@@ -2,17 +2,86 @@ import os
 import numpy as np
 import insightface
 from insightface.app import FaceAnalysis
+from insightface.utils import face_align
 import argparse
 import subprocess
 import json
 import faiss
 import cv2
 import sys
+import traceback
+import re
+import queue
+import threading
+import functools
+import time
+import struct
+import collections
+import concurrent.futures
+import itertools
+import onnxruntime
+import base64
+import face_gallery
+from worker_protocol import emit
 
 # --- Configuration ---
 MODEL_NAME = "buffalo_l"
 RECOGNITION_THRESHOLD = 1
 
+# Adaptive sampling: ffmpeg scene score that always lets a frame through, the mean absolute
+# difference of 32x18 grey thumbnails that counts as a cut or as enough change to look again, and
+# how many frames after a cut are analysed densely.
+SCENE_CHANGE_SCORE = 0.3
+ADAPTIVE_CUT_DIFF = 0.12
+ADAPTIVE_DRIFT_DIFF = 0.05
+ADAPTIVE_BURST_FRAMES = 3
+
+# Tracking: minimum box overlap to continue a track, seconds after which a track is identified
+# again, and the fewest seconds a track survives without being seen. Sparse sampling stretches the
+# gap to TRACK_GAP_SAMPLES sample intervals, so a track does not end between two samples.
+TRACK_IOU_THRESHOLD = 0.3
+TRACK_REVERIFY_SECONDS = 3.0
+TRACK_MAX_GAP_SECONDS = 1.0
+TRACK_GAP_SAMPLES = 1.5
+
+# Budget sampling: seconds of analysis per sample assumed until the worker has measured its own,
+# and the stratum width from which decoding keyframes only is dense enough.
+INITIAL_SAMPLE_COST = 0.15
+KEYFRAME_STRATUM_SECONDS = 5.0
+DEFAULT_MAX_SAMPLES = 60
+measured_sample_cost = INITIAL_SAMPLE_COST
+
+# Unrecognised faces offered for enrollment: a track needs this many observations, and a job
+# reports at most this many distinct people.
+UNKNOWN_MIN_OBSERVATIONS = 3
+MAX_UNKNOWN_FACES = 50
+
+# Photo batches: decoding threads, photos decoded ahead of detection, and the longest side a photo
+# is reduced to, which keeps the decoded read-ahead small while leaving face crops sharp.
+PHOTO_DECODE_THREADS = 4
+PHOTO_READ_AHEAD = 8
+PHOTO_MAX_SIDE = 2560
+
+# Live preview: frames per second at most, width of the preview frames and their JPEG quality.
+PREVIEW_FPS = 4
+PREVIEW_WIDTH = 480
+PREVIEW_JPEG_QUALITY = 70
+# Set while the app shows the preview. Jobs and preview control messages switch it.
+preview_watching = threading.Event()
+
+# Sample rate of the audio demuxed for speech detection.
+AUDIO_SAMPLE_RATE = 16000
+
+# Frames in flight between the decode thread and the inference loop, and the seconds to wait for
+# the showinfo line of a frame that has already arrived on the pipe.
+FRAME_RING_SLOTS = 4
+FRAME_TIME_TIMEOUT = 30
+
+# One line per frame from ffmpeg's showinfo filter, e.g. "n:  12 pts: 61440 pts_time:2.56 ...".
+SHOWINFO_PTS = re.compile(r'\bn:\s*\d+\s+pts:\s*-?\d+\s+pts_time:\s*(-?[0-9.]+(?:e[-+]?\d+)?)')
+# Last lines of ffmpeg's other stderr output quoted when it fails.
+FFMPEG_ERROR_LINES = 5
+
 def load_faiss_index(index_path, names_path):
     """Loads the FAISS index and names list from disk."""
     try:
@@ -24,149 +93,1039 @@ def load_faiss_index(index_path, names_path):
         print(f"Index loaded successfully with {index.ntotal} known faces.")
         return index, names
     except Exception as e:
-        print(f"Error loading index files: {e}", file=sys.stderr)
-        exit(1)
+        raise RuntimeError(f"Error loading index files: {e}")
+
+def parse_rate(rate):
+    """Parses an ffprobe rational such as 30000/1001, returning 0.0 for missing or invalid values."""
+    try:
+        num, den = map(float, str(rate).split('/')) if '/' in str(rate) else (float(rate), 1.0)
+        return num / den if den != 0 else 0.0
+    except ValueError:
+        return 0.0
 
 def get_video_info(video_path, ffprobe_path):
-    """Gets video info using ffprobe, using the provided absolute path."""
+    """Gets (width, height, duration, fps) of the first video stream using ffprobe.
+
+    Only the container and stream headers are read. The duration comes from the stream, from its
+    duration_ts and time base, or from the container, in that order; many MOV and variable frame
+    rate files have no frame count, and counting the frames would mean decoding the whole file.
+    """
     cmd = [
         ffprobe_path,
         '-v', 'error',
         '-select_streams', 'v:0',
-        '-show_entries', 'stream=width,height,nb_frames,avg_frame_rate',
+        '-show_entries', 'stream=width,height,avg_frame_rate,r_frame_rate,duration,duration_ts,time_base'
+                         ':format=duration',
         '-of', 'json', video_path
     ]
     try:
         result = subprocess.run(cmd, capture_output=True, text=True, check=True)
-        info = json.loads(result.stdout)['streams'][0]
-        if 'nb_frames' not in info:
-            cmd_fallback = [
-                ffprobe_path, '-v', 'error', '-count_frames',
-                '-select_streams', 'v:0',
-                '-show_entries', 'stream=nb_read_frames',
-                '-of', 'default=nokey=1:noprint_wrappers=1', video_path
-            ]
-            result_fallback = subprocess.run(cmd_fallback, capture_output=True, text=True, check=True)
-            info['nb_frames'] = int(result_fallback.stdout.strip())
+        probe = json.loads(result.stdout)
+        info = probe['streams'][0]
         width = int(info['width'])
         height = int(info['height'])
-        total_frames = int(info['nb_frames'])
-        fr_str = info.get('avg_frame_rate', '0/1')
-        num, den = map(float, fr_str.split('/'))
-        fps = num / den if den != 0 else 0.0
-        return width, height, total_frames, fps
+        fps = parse_rate(info.get('avg_frame_rate', '0/1')) or parse_rate(info.get('r_frame_rate', '0/1'))
+        duration = parse_rate(info.get('duration', 0))
+        if duration <= 0 and 'duration_ts' in info:
+            duration = float(info['duration_ts']) * parse_rate(info.get('time_base', '0/1'))
+        if duration <= 0:
+            duration = parse_rate(probe.get('format', {}).get('duration', 0))
+        return width, height, duration, fps
     except Exception as e:
         # This error message is what you saw in the dialog
         print(f"Error getting video info with ffprobe: {e}", file=sys.stderr)
-        return 0, 0, 0
+        return 0, 0, 0.0, 0.0
+
+# Decode hwaccel and preferred ONNX Runtime execution providers of each acceleration profile. The
+# CPU provider is always appended as the fallback.
+ACCEL_PROFILES = {
+    'videotoolbox': ('videotoolbox', ['CoreMLExecutionProvider']),
+    'cuda': ('cuda', ['CUDAExecutionProvider']),
+    'vaapi': ('vaapi', []),
+    'cpu': (None, []),
+}
+# Seconds to wait for ffmpeg to open a hardware device while probing.
+HWACCEL_PROBE_TIMEOUT = 15
+
+def select_accel_profile(requested, ffmpeg_path, threads):
+    """Probes the machine and returns the (name, hwaccel, providers, threads) to run with.
+
+    auto prefers VideoToolbox on macOS and CUDA, then VAAPI elsewhere, falling back to plain CPU.
+    Whatever ffmpeg or ONNX Runtime cannot provide on this machine is dropped, so an explicitly
+    requested profile degrades to software decoding or CPU inference instead of failing.
+    """
+    try:
+        output = subprocess.run([ffmpeg_path, '-hide_banner', '-hwaccels'], capture_output=True, text=True).stdout
+        hwaccels = {line.strip() for line in output.splitlines()[1:] if line.strip()}
+    except OSError:
+        hwaccels = set()
+    available_providers = set(onnxruntime.get_available_providers())
+
+    @functools.lru_cache(maxsize=None)
+    def usable(name):
+        hwaccel, _ = ACCEL_PROFILES[name]
+        if hwaccel not in hwaccels:
+            return False
+        # ffmpeg lists every hwaccel it was built with, whether or not the machine has the device,
+        # so the device is really opened once on an empty input.
+        try:
+            return subprocess.run([ffmpeg_path, '-hide_banner', '-loglevel', 'error',
+                                   '-init_hw_device', f'{hwaccel}=probe', '-f', 'lavfi', '-i', 'nullsrc=s=16x16:d=0.04',
+                                   '-f', 'null', '-'],
+                                  capture_output=True, timeout=HWACCEL_PROBE_TIMEOUT).returncode == 0
+        except (OSError, subprocess.TimeoutExpired):
+            return False
+
+    if requested == 'auto':
+        candidates = ['videotoolbox'] if sys.platform == 'darwin' else ['cuda', 'vaapi']
+        name = next((candidate for candidate in candidates if usable(candidate)), 'cpu')
+    else:
+        name = requested
+    hwaccel, preferred = ACCEL_PROFILES[name]
+    if hwaccel is not None and not usable(name):
+        print(f"ffmpeg cannot use {hwaccel} here, decoding in software.", file=sys.stderr)
+        hwaccel = None
+    providers = [provider for provider in preferred if provider in available_providers] + ['CPUExecutionProvider']
+    return name, hwaccel, providers, threads if threads > 0 else (os.cpu_count() or 1)
+
+def scaled_height(original_width, original_height, width):
+    """The height matching width at the source aspect ratio, rounded to the nearest even integer
+    to match ffmpeg's behavior and satisfy hardware acceleration constraints."""
+    return int(round(original_height * (width / original_width) / 2) * 2)
+
+def audio_output_args(audio_out):
+    """A second ffmpeg output with the audio of the same range as 16 kHz mono float32 PCM, the
+    format Whisper works on, so speech detection can skip decoding the file again."""
+    if not audio_out:
+        return []
+    return ['-map', '0:a:0', '-vn', '-ac', '1', '-ar', str(AUDIO_SAMPLE_RATE), '-f', 'f32le', '-y', audio_out]
+
+@functools.lru_cache(maxsize=None)
+def has_fps_mode(ffmpeg_path):
+    """Whether ffmpeg takes -fps_mode, which replaced -vsync in ffmpeg 5.1. Probed once per ffmpeg."""
+    try:
+        help_text = subprocess.run([ffmpeg_path, '-hide_banner', '-h', 'long'], capture_output=True, text=True).stdout
+    except OSError:
+        help_text = ''
+    return '-fps_mode' in help_text
+
+def passthrough_args(ffmpeg_path):
+    """Keeps the source timestamps of the sampled frames."""
+    return ['-fps_mode', 'passthrough'] if has_fps_mode(ffmpeg_path) else ['-vsync', '0']
+
+def plan_budget_samples(args, span):
+    """Number of samples and stratum width for --sampling budget."""
+    samples = args.max_samples if args.max_samples > 0 else DEFAULT_MAX_SAMPLES
+    if args.time_budget > 0:
+        samples = min(samples, max(1, int(args.time_budget / measured_sample_cost)))
+    if span > 0:
+        return samples, span / samples
+    return samples, 0.0
+
+def build_sampling_filters(args, stratum=0.0, keyframes=False):
+    """Returns the filters that drop unanalysed frames inside ffmpeg, before scaling and the pipe."""
+    if args.sampling == 'budget' and stratum > 0:
+        new_stratum = f"not(eq(floor(t/{stratum:.6f}),floor(prev_selected_t/{stratum:.6f})))"
+        if keyframes:
+            # Only keyframes are decoded and a long GOP can leave the second half of a stratum
+            # without one, so the first keyframe of each stratum is taken.
+            return [f"select='{new_stratum}'"]
+        # One frame per stratum, the first one past the middle of it, so samples are spread evenly
+        # over the whole range however long it is.
+        return [f"select='gte(t-floor(t/{stratum:.6f})*{stratum:.6f},{stratum / 2:.6f})*{new_stratum}'"]
+    if args.keyframes_only:
+        # The decoder already skips everything but keyframes (-skip_frame nokey).
+        return []
+    if args.sampling == 'adaptive':
+        # The dense grid plus every frame ffmpeg scores as a scene change, so cutaways shorter than
+        # the grid still reach Python. AdaptiveSampler then decides which of them get analysed.
+        grid = max(1, args.frame_skip)
+        return [f"select='gt(scene,{SCENE_CHANGE_SCORE})+not(mod(n+1,{grid}))'"]
+    if args.sample_fps > 0:
+        # Time based selection keeps the original pts, unlike the fps filter which snaps to a grid.
+        return [f"select='isnan(prev_selected_t)+gte(t-prev_selected_t,{1.0 / args.sample_fps:.6f})'"]
+    if args.frame_skip > 1:
+        # Same frames the Python side used to keep: the N-th, 2N-th, ... decoded frame.
+        return [f"select='not(mod(n+1,{args.frame_skip}))'"]
+    return []
+
+def sample_interval(args, fps, stratum=0.0):
+    """Seconds between two analysed frames of a stable shot, or 0 when that is not known."""
+    if args.sampling == 'budget' and stratum > 0:
+        return stratum
+    if args.sampling == 'adaptive':
+        return args.stable_interval
+    if args.keyframes_only:
+        # Keyframes are rarely further apart than this.
+        return KEYFRAME_STRATUM_SECONDS
+    if args.sample_fps > 0:
+        return 1.0 / args.sample_fps
+    return max(1, args.frame_skip) / fps if fps > 0 else 0.0
+
+class AdaptiveSampler:
+    """Decides per piped frame whether it is worth running face analysis on.
+
+    Frames around a cut are analysed densely, frames within a stable shot only when the picture
+    has drifted away from the last analysed frame or the stable interval has passed.
+    """
+
+    def __init__(self, stable_interval):
+        self.stable_interval = stable_interval
+        self.previous = None
+        self.last_analysed = None
+        self.last_analysed_time = None
+        self.burst = 0
+
+    def should_analyse(self, frame, time):
+        small = cv2.resize(cv2.cvtColor(frame, cv2.COLOR_BGR2GRAY), (32, 18), interpolation=cv2.INTER_AREA)
+        small = small.astype(np.float32) / 255.0
+        previous, self.previous = self.previous, small
+
+        if previous is not None and float(np.mean(np.abs(small - previous))) > ADAPTIVE_CUT_DIFF:
+            self.burst = ADAPTIVE_BURST_FRAMES
+        if self.burst > 0:
+            self.burst -= 1
+            analyse = True
+        elif self.last_analysed is None or time - self.last_analysed_time >= self.stable_interval:
+            analyse = True
+        else:
+            analyse = float(np.mean(np.abs(small - self.last_analysed))) > ADAPTIVE_DRIFT_DIFF
+
+        if analyse:
+            self.last_analysed = small
+            self.last_analysed_time = time
+        return analyse
+
+def box_iou(a, b):
+    x1, y1 = max(a[0], b[0]), max(a[1], b[1])
+    x2, y2 = min(a[2], b[2]), min(a[3], b[3])
+    inter = max(0.0, x2 - x1) * max(0.0, y2 - y1)
+    union = (a[2] - a[0]) * (a[3] - a[1]) + (b[2] - b[0]) * (b[3] - b[1]) - inter
+    return inter / union if union > 0 else 0.0
+
+class Track:
+    __slots__ = ('bbox', 'kps', 'requested_at', 'last_seen', 'observations', 'identities', 'embeddings',
+                 'pending', 'sample')
+
+    def __init__(self, bbox, time):
+        self.bbox = bbox
+        self.kps = None
+        self.requested_at = None
+        self.last_seen = time
+        self.observations = []
+        self.identities = []
+        # The embedding behind every identity, for the embedding store.
+        self.embeddings = []
+        # Identifications requested but still waiting in the recognizer's batch.
+        self.pending = 0
+        # (embedding, aligned crop) of the first identification that found nobody.
+        self.sample = None
+
+    def current_name(self):
+        return self.identities[-1][1] if self.identities else "Unknown"
+
+class FaceTracker:
+    """Follows faces between analysed frames by box overlap so each person is identified once per
+    track and then only re-verified every TRACK_REVERIFY_SECONDS.
+
+    Identifications arrive later, in batches, so a track only records when it was seen and which
+    names it was given. take_closed() and finish() hand out the tracks that are done and resolve()
+    turns them into per-person intervals; a re-verification that yields a different
+    name splits the track, which also covers a cut that happens to keep a face in the same place.
+    """
+
+    def __init__(self, max_gap=TRACK_MAX_GAP_SECONDS):
+        self.max_gap = max_gap
+        self.tracks = []
+        self.closed = []
+
+    def update(self, time, bboxes):
+        """Matches this frame's boxes to tracks. Returns the track of every box."""
+        active = []
+        for track in self.tracks:
+            if time - track.last_seen > self.max_gap:
+                self.closed.append(track)
+            else:
+                active.append(track)
+        self.tracks = active
+
+        pairs = sorted(((box_iou(t.bbox, b), ti, bi) for ti, t in enumerate(active) for bi, b in enumerate(bboxes)),
+                       reverse=True)
+        assigned = [None] * len(bboxes)
+        used = set()
+        for score, ti, bi in pairs:
+            if score < TRACK_IOU_THRESHOLD:
+                break
+            if ti in used or assigned[bi] is not None:
+                continue
+            used.add(ti)
+            assigned[bi] = active[ti]
+        for bi, bbox in enumerate(bboxes):
+            if assigned[bi] is None:
+                assigned[bi] = Track(bbox, time)
+                self.tracks.append(assigned[bi])
+            assigned[bi].bbox = bbox
+            assigned[bi].last_seen = time
+            assigned[bi].observations.append(time)
+        return assigned
+
+    @staticmethod
+    def needs_identification(track, time):
+        return track.requested_at is None or time - track.requested_at >= TRACK_REVERIFY_SECONDS
+
+    def take_closed(self):
+        """Returns the tracks that have ended and have all their names, so they can be reported
+        while the video is still being processed."""
+        if not any(track.pending == 0 for track in self.closed):
+            return []
+        ready = [track for track in self.closed if track.pending == 0]
+        self.closed = [track for track in self.closed if track.pending > 0]
+        return ready
+
+    def finish(self):
+        """Returns all remaining tracks."""
+        tracks = self.closed + self.tracks
+        self.tracks = []
+        self.closed = []
+        return tracks
+
+    @staticmethod
+    def resolve(tracks):
+        """Turns tracks into the intervals of known faces, sorted by time, and the
+        (embedding, crop, start, end) of tracks nobody was ever recognised in."""
+        intervals = []
+        unknowns = []
+        for track in tracks:
+            if (track.sample is not None and len(track.observations) >= UNKNOWN_MIN_OBSERVATIONS
+                    and all(name == "Unknown" for _, name in track.identities)):
+                unknowns.append((*track.sample, track.observations[0], track.observations[-1]))
+            current = None
+            name = "Unknown"
+            next_identity = 0
+            # Observations and identities are both in time order, so one pass pairs them up.
+            for time in track.observations:
+                while next_identity < len(track.identities) and track.identities[next_identity][0] <= time:
+                    name = track.identities[next_identity][1]
+                    next_identity += 1
+                if current is not None and current["name"] == name:
+                    current["end"] = time
+                else:
+                    current = {"name": name, "start": time, "end": time}
+                    if name != "Unknown":
+                        intervals.append(current)
+        intervals.sort(key=lambda i: i["start"])
+        return intervals, unknowns
+
+class BatchRecognizer:
+    """Collects aligned face crops across faces and frames, then embeds them with one batched
+    recognition call and looks them all up with one FAISS search."""
+
+    def __init__(self, recognition_model, faiss_index, names, batch_size, threshold=RECOGNITION_THRESHOLD):
+        self.model = recognition_model
+        self.faiss_index = faiss_index
+        self.names = names
+        self.batch_size = max(1, batch_size)
+        self.threshold = threshold
+        self.pending = []
+        self.batches = 0
+        self.recognitions = 0
+
+    def request(self, frame, track, time, kps):
+        # The crop is a copy, so the frame buffer may be reused as soon as this returns.
+        crop = face_align.norm_crop(frame, landmark=kps, image_size=self.model.input_size[0])
+        track.requested_at = time
+        track.pending += 1
+        self.pending.append((track, time, crop))
+        if len(self.pending) >= self.batch_size:
+            self.flush()
+
+    def flush(self):
+        if not self.pending:
+            return
+        embeddings = self.model.get_feat([crop for _, _, crop in self.pending]).astype('float32')
+        embeddings /= np.linalg.norm(embeddings, axis=1, keepdims=True)
+        distances, indices = self.faiss_index.search(embeddings, 1)
+        for (track, time, crop), embedding, distance, best_match_index in zip(
+                self.pending, embeddings, distances[:, 0], indices[:, 0]):
+            name = "Unknown"
+            if distance < self.threshold and best_match_index >= 0:
+                name = self.names[best_match_index]
+            elif track.sample is None:
+                track.sample = (embedding.copy(), crop)
+            track.identities.append((time, name))
+            track.embeddings.append(embedding.copy())
+            track.pending -= 1
+        self.batches += 1
+        self.recognitions += len(self.pending)
+        self.pending = []
+
+class FrameRing:
+    """A fixed set of preallocated frame buffers between a decode thread and the inference loop.
+
+    The decode thread fills a free buffer straight from the ffmpeg pipe with readinto() and pairs
+    it with its presentation time; the inference loop takes filled buffers and hands them back
+    once done. Steady-state decoding therefore allocates nothing, and a full ring blocks the
+    decoder, which in turn blocks ffmpeg. A frame without a timestamp fails the job rather than
+    getting a guessed one, which would be wrong for every sampling mode but a fixed frame skip.
+    """
+
+    def __init__(self, stream, frame_times, height, width, slots=FRAME_RING_SLOTS, hires=None):
+        self.stream = stream
+        self.frame_times = frame_times
+        self.error = None
+        self.size = (width, height)
+        self.buffers = [np.empty((height, width, 3), dtype=np.uint8) for _ in range(slots)]
+        # Optional (height, width) of a higher resolution copy of every frame for recognition. The
+        # pipe then carries that copy and the detection frame is scaled down from it here, so one
+        # pipe delivers both and the two can never wait on each other.
+        self.hires_buffers = None
+        if hires is not None:
+            hires_height, hires_width = hires
+            self.hires_buffers = [np.empty((hires_height, hires_width, 3), dtype=np.uint8) for _ in range(slots)]
+        self.free = queue.Queue()
+        for index in range(slots):
+            self.free.put(index)
+        self.filled = queue.Queue()
+        self.stopped = threading.Event()
+        self.frame_count = 0
+        self.thread = threading.Thread(target=self._decode, daemon=True)
+        self.thread.start()
+
+    def _next_time(self):
+        # showinfo logs a frame before ffmpeg writes it to the pipe, so its line is already on the
+        # way; a missing one means ffmpeg's stderr ended or stalled.
+        try:
+            pts = self.frame_times.get(timeout=FRAME_TIME_TIMEOUT)
+        except queue.Empty:
+            pts = None
+        if pts is None:
+            raise RuntimeError(f"ffmpeg reported no timestamp for frame {self.frame_count}.")
+        return pts
+
+    @staticmethod
+    def _fill(stream, buffer):
+        view = memoryview(buffer).cast('B')
+        filled = 0
+        while filled < len(view):
+            read = stream.readinto(view[filled:])
+            if not read:
+                break
+            filled += read
+        return filled == len(view)
+
+    def _decode(self):
+        try:
+            while not self.stopped.is_set():
+                index = self.free.get()
+                if index is None:
+                    break
+                if self.hires_buffers is None:
+                    if not self._fill(self.stream, self.buffers[index]):
+                        break
+                else:
+                    if not self._fill(self.stream, self.hires_buffers[index]):
+                        break
+                    # OpenCV releases the GIL while scaling, so this overlaps with inference.
+                    cv2.resize(self.hires_buffers[index], self.size, dst=self.buffers[index],
+                               interpolation=cv2.INTER_AREA)
+                self.filled.put((index, self._next_time()))
+                self.frame_count += 1
+        except Exception as e:
+            self.error = e
+        finally:
+            self.filled.put(None)
+
+    def next(self):
+        """Returns (index, frame, pts) of the next decoded frame, or None at the end. Raises the
+        error that stopped the decode thread."""
+        item = self.filled.get()
+        if item is None:
+            if self.error is not None:
+                raise self.error
+            return None
+        index, pts = item
+        return index, self.buffers[index], pts
+
+    def hires(self, index):
+        """The high resolution copy of a frame, or the frame itself when there is none."""
+        return self.hires_buffers[index] if self.hires_buffers is not None else self.buffers[index]
+
+    def release(self, index):
+        self.free.put(index)
+
+    def close(self):
+        self.stopped.set()
+        self.free.put(None)
+
+class UnknownFaces:
+    """Reports one sample of every distinct person a job could not recognise, so they can be
+    enrolled in the gallery. Tracks of someone already reported are skipped."""
+
+    def __init__(self, threshold=RECOGNITION_THRESHOLD, limit=MAX_UNKNOWN_FACES):
+        self.threshold = threshold
+        self.limit = limit
+        self.reported = []
+
+    def report(self, unknowns, **fields):
+        """Emits the unknown events and returns their fields."""
+        reported = []
+        for embedding, crop, start, end in unknowns:
+            if len(self.reported) >= self.limit:
+                break
+            if any(float(np.sum((embedding - seen) ** 2)) < self.threshold for seen in self.reported):
+                continue
+            self.reported.append(embedding)
+            thumbnail = cv2.imencode('.jpg', crop)[1].tobytes()
+            event = dict(start=round(start, 3), end=round(end, 3),
+                         embedding=face_gallery.encode_embedding(embedding),
+                         thumbnail=base64.b64encode(thumbnail).decode('ascii'), **fields)
+            emit("unknown", flush=False, **event)
+            reported.append(event)
+        return reported
+
+class EmbeddingStore:
+    """Keeps every identification of a job in a file, so the video can be matched again against a
+    grown gallery or another threshold without decoding it.
+
+    The file is little-endian: the header "MTFE", version, embedding size, record count and flags
+    (bit 0: the job completed), all int32, then one record per identification: float64 start and
+    end of the observations it names, int32 track number and the L2-normalised float32
+    embedding. Records are appended as tracks finish; a failed job leaves a valid file with the
+    records so far and without the completed flag.
+
+    The unknown faces the job offered for enrollment go next to it, to the same path with
+    ".unknown" appended, as one JSON object per line with the fields of their unknown events. They
+    are written before the store itself, so a store that exists always has them.
+    """
+    MAGIC = b'MTFE'
+    VERSION = 1
+    HEADER = struct.Struct('<4siiii')
+    RECORD = struct.Struct('<ddi')
+
+    def __init__(self, path):
+        self.path = path
+        self.file = None
+        self.dim = 0
+        self.count = 0
+        self.tracks = 0
+        self.unknowns = []
+
+    def add_unknowns(self, events):
+        self.unknowns.extend(events)
+
+    def write(self, tracks):
+        for track in tracks:
+            if not track.embeddings:
+                continue
+            if self.file is None:
+                self.dim = len(track.embeddings[0])
+                self.file = open(self.path + '.tmp', 'wb')
+                self.file.write(self.HEADER.pack(self.MAGIC, self.VERSION, self.dim, 0, 0))
+            self.tracks += 1
+            for k, ((time, _), embedding) in enumerate(zip(track.identities, track.embeddings)):
+                # An identity names the track until the next re-verification.
+                end = track.identities[k + 1][0] if k + 1 < len(track.identities) else track.observations[-1]
+                self.file.write(self.RECORD.pack(time, end, self.tracks))
+                self.file.write(np.asarray(embedding, dtype='<f4').tobytes())
+                self.count += 1
+
+    def close(self, completed):
+        with open(self.path + '.unknown.tmp', 'w') as f:
+            for event in self.unknowns:
+                f.write(json.dumps(event, separators=(',', ':')) + '\n')
+        os.replace(self.path + '.unknown.tmp', self.path + '.unknown')
+        if self.file is None:
+            # No face at all still makes a valid, empty store.
+            self.file = open(self.path + '.tmp', 'wb')
+            self.file.write(self.HEADER.pack(self.MAGIC, self.VERSION, 0, 0, 0))
+        self.file.seek(0)
+        self.file.write(self.HEADER.pack(self.MAGIC, self.VERSION, self.dim, self.count, 1 if completed else 0))
+        self.file.close()
+        os.replace(self.path + '.tmp', self.path)
+
+class PreviewStream:
+    """Sends the analysed frames with their boxes and names as small JPEG preview events, at most
+    PREVIEW_FPS a second. While nobody watches it costs one flag check per frame."""
+
+    def __init__(self, watching):
+        self.watching = watching
+        self.next_time = 0.0
+
+    def offer(self, frame, tracks, time_seconds):
+        if not self.watching.is_set():
+            return
+        now = time.monotonic()
+        if now < self.next_time:
+            return
+        self.next_time = now + 1.0 / PREVIEW_FPS
+        height, width = frame.shape[:2]
+        scale = min(1.0, PREVIEW_WIDTH / width)
+        # Boxes are drawn into the scaled copy, or straight into the ring buffer, which is not read again.
+        if scale < 1.0:
+            frame = cv2.resize(frame, (PREVIEW_WIDTH, int(height * scale)), interpolation=cv2.INTER_AREA)
+        for track in tracks:
+            # Names still waiting in the recognizer's batch show up on a later preview frame.
+            name = track.current_name()
+            bbox = (np.asarray(track.bbox) * scale).astype(int)
+            color = (0, 255, 0) if name != "Unknown" else (0, 0, 255)
+            cv2.rectangle(frame, (bbox[0], bbox[1]), (bbox[2], bbox[3]), color, 2)
+            cv2.putText(frame, name, (bbox[0], bbox[1] - 10), cv2.FONT_HERSHEY_SIMPLEX, 0.5, color, 1)
+        ok, jpeg = cv2.imencode('.jpg', frame, [cv2.IMWRITE_JPEG_QUALITY, PREVIEW_JPEG_QUALITY])
+        if ok:
+            emit("preview", time=round(time_seconds, 3), jpeg=base64.b64encode(jpeg.tobytes()).decode('ascii'))
+
+def report_faces(tracks, unknown_faces, store=None):
+    if store is not None:
+        store.write(tracks)
+    intervals, unknowns = FaceTracker.resolve(tracks)
+    reported = unknown_faces.report(unknowns)
+    if store is not None:
+        store.add_unknowns(reported)
+    for interval in intervals:
+        emit("track", flush=False, name=interval["name"],
+             start=round(interval["start"], 3), end=round(interval["end"], 3))
+
+def read_frame_times(stream, frame_times, tail):
+    """Forwards the pts_time of every frame reaching the pipe, in order, from ffmpeg's stderr.
+    Other lines are kept in tail for the error message if ffmpeg fails."""
+    for raw_line in iter(stream.readline, b''):
+        line = raw_line.decode('utf-8', 'replace')
+        matches = list(SHOWINFO_PTS.finditer(line))
+        for match in matches:
+            frame_times.put(float(match.group(1)))
+        if not matches and line.strip() and 'showinfo' not in line:
+            tail.append(line.strip())
+    frame_times.put(None)
 
 # MODIFIED: Add ffmpeg_path and ffprobe_path to the function signature
 def process_video_from_index(app, faiss_index, names, ffmpeg_path, ffprobe_path, args):
-    show_preview = args.preview
-    original_width, original_height, total_frames, fps = get_video_info(args.video_path, ffprobe_path)
+    original_width, original_height, video_duration, fps = get_video_info(args.video_path, ffprobe_path)
+
+    if original_width == 0 or original_height == 0:
+        # In worker mode this only fails the current job, the worker itself keeps running.
+        raise RuntimeError("Failed to get video metadata.")
+    if video_duration <= 0:
+        print("Could not determine the video duration. Progress bar will be disabled.", file=sys.stderr)
 
-    if total_frames == 0:
-        print("Could not determine total frames. Progress bar will be disabled.", file=sys.stderr)
-        # Add an early exit to prevent the division by zero error
-        print("Exiting due to failure to get video metadata.", file=sys.stderr)
-        exit(1)
+    # A shard covers [start, start + duration) of the video. Seeking on the input side makes ffmpeg
+    # skip straight to the nearest keyframe and decode from there, so shards cost no extra decoding.
+    start = max(0.0, args.start)
+    ffmpeg_cmd = [ffmpeg_path, '-nostats']
+    if args.hwaccel:
+        ffmpeg_cmd.extend(['-hwaccel', args.hwaccel])
+    if args.keyframes_only:
+        ffmpeg_cmd.extend(['-skip_frame', 'nokey'])
+    if start > 0:
+        ffmpeg_cmd.extend(['-ss', f'{start:.3f}'])
+    if args.duration > 0:
+        ffmpeg_cmd.extend(['-t', f'{args.duration:.3f}'])
+    # Progress is the presentation time of the decoded frames over the time range they cover.
+    span = max(0.0, video_duration - start)
+    if args.duration > 0:
+        span = min(span, args.duration) if span > 0 else args.duration
+
+    target_samples, stratum = 0, 0.0
+    keyframes = args.keyframes_only
+    if args.sampling == 'budget':
+        target_samples, stratum = plan_budget_samples(args, span)
+        if stratum >= KEYFRAME_STRATUM_SECONDS and not args.keyframes_only:
+            # Wide strata only need keyframes, which skips decoding almost the whole file.
+            ffmpeg_cmd.extend(['-skip_frame', 'nokey'])
+            keyframes = True
+        emit("log", message=f"Budget sampling: {target_samples} samples, one per {stratum:.2f}s.")
 
     # MODIFIED: Use the full path to ffmpeg passed as an argument
-    ffmpeg_cmd = [ffmpeg_path, '-hwaccel', 'videotoolbox', '-i', args.video_path]
+    ffmpeg_cmd.extend(['-i', args.video_path])
 
+    filters = build_sampling_filters(args, stratum, keyframes)
     if args.resize_width > 0:
         width = args.resize_width
-        # Calculate the corresponding height, maintaining aspect ratio.
-        new_height_float = original_height * (width / original_width)
-        # Round the height to the nearest even integer to match ffmpeg's behavior
-        # and satisfy hardware acceleration constraints.
-        height = int(round(new_height_float / 2) * 2)
-
-        # Explicitly provide the calculated width AND height to ffmpeg.
-        ffmpeg_cmd.extend(['-vf', f'scale={width}:{height}'])
+        height = scaled_height(original_width, original_height, width)
     else:
         width, height = original_width, original_height
 
-    ffmpeg_cmd.extend(['-f', 'image2pipe', '-pix_fmt', 'bgr24', '-vcodec', 'rawvideo', '-'])
-    process = subprocess.Popen(ffmpeg_cmd, stdout=subprocess.PIPE, stderr=subprocess.DEVNULL)
-    frame_size = width * height * 3
-    found_faces_set = set()
-    detections = []
-    frame_count = 0
-    should_quit = False
-    print("PROGRESS:0", flush=True)
-
-    while not should_quit:
-        raw_frame = process.stdout.read(frame_size)
-        if not raw_frame: break
-        frame_count += 1
-
-        if total_frames > 0 and frame_count % 15 == 0:
-            progress_percent = int((frame_count / total_frames) * 100)
-            print(f"PROGRESS:{progress_percent}", flush=True)
-
-        if args.frame_skip > 1 and frame_count % args.frame_skip != 0: continue
-
-        frame = np.frombuffer(raw_frame, dtype='uint8').reshape((height, width, 3))
-        faces_in_frame = app.get(frame)
-        current_time = frame_count / fps if fps > 0 else 0
-
-        preview_frame = frame.copy() if show_preview else None
-
-        for face in faces_in_frame:
-            normed_embedding = face.embedding / np.linalg.norm(face.embedding)
-            query_embedding = np.array([normed_embedding]).astype('float32')
-            distances, indices = faiss_index.search(query_embedding, 1)
-            distance = distances[0][0]
-            best_match_index = indices[0][0]
-            best_match_name = "Unknown"
-
-            if distance < RECOGNITION_THRESHOLD:
-                best_match_name = names[best_match_index]
-                found_faces_set.add(best_match_name)
-                detections.append({"time": current_time, "name": best_match_name})
-
-            if show_preview:
-                bbox = face.bbox.astype(int)
-                color = (0, 255, 0) if best_match_name != "Unknown" else (0, 0, 255)
-                cv2.rectangle(preview_frame, (bbox[0], bbox[1]), (bbox[2], bbox[3]), color, 2)
-                cv2.putText(preview_frame, best_match_name, (bbox[0], bbox[1] - 10), cv2.FONT_HERSHEY_SIMPLEX, 0.6, color, 1)
-
-        if show_preview:
-            cv2.imshow('Media Tagger - Preview', preview_frame)
-            if cv2.waitKey(1) & 0xFF == ord('q'):
-                should_quit = True
-
-    print("PROGRESS:100", flush=True)
-    process.terminate()
-    if show_preview:
-        cv2.destroyAllWindows()
-
-    sorted_names = sorted(list(found_faces_set))
-    result = {"names": sorted_names, "detections": detections}
-    print(f"RESULTS:{json.dumps(result)}", flush=True)
+    # Detection only needs the small frames, but faces cropped from them lose most of their detail.
+    # With a recognition width ffmpeg scales every sampled frame to that width instead, the
+    # recognition crops are cut from it and the detection frames are scaled down from it. Frames
+    # without faces pay for it too; fetching hi-res frames only on demand would need a seek and a
+    # GOP decode per identification, which costs more than the pipe traffic on typical footage.
+    hires_width = min(args.recognition_width, original_width) if args.recognition_width > 0 else 0
+    hires = hires_width > width
+    output_args = passthrough_args(ffmpeg_path) + ['-f', 'image2pipe', '-pix_fmt', 'bgr24', '-vcodec', 'rawvideo']
+    if hires:
+        hires_height = scaled_height(original_width, original_height, hires_width)
+        pipe_width, pipe_height = hires_width, hires_height
+    else:
+        hires_width, hires_height = width, height
+        pipe_width, pipe_height = width, height
+    if pipe_width != original_width:
+        # Explicitly provide the calculated width AND height to ffmpeg. Scaling runs after the
+        # selection so skipped frames are never scaled.
+        filters.append(f'scale={pipe_width}:{pipe_height}')
+    filters.append('showinfo')
+    ffmpeg_cmd.extend(['-map', '0:v:0', '-vf', ','.join(filters), *output_args, '-'])
+    ffmpeg_cmd.extend(audio_output_args(args.audio_out))
+    process = subprocess.Popen(ffmpeg_cmd, stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+    frame_times = queue.Queue()
+    stderr_tail = collections.deque(maxlen=FFMPEG_ERROR_LINES)
+    threading.Thread(target=read_frame_times, args=(process.stderr, frame_times, stderr_tail), daemon=True).start()
+
+    ring = FrameRing(process.stdout, frame_times, height, width,
+                     hires=(hires_height, hires_width) if hires else None)
+    # Detections are in detection frame coordinates, landmarks are scaled up to the recognition frame.
+    kps_scale = np.array([hires_width / width, hires_height / height], dtype=np.float32)
+    sample_count = 0
+    analysed_count = 0
+    sampler = AdaptiveSampler(args.stable_interval) if args.sampling == 'adaptive' else None
+    tracker = FaceTracker(max(TRACK_MAX_GAP_SECONDS, TRACK_GAP_SAMPLES * sample_interval(args, fps, stratum)))
+    recognizer = BatchRecognizer(app.models['recognition'], faiss_index, names, args.batch_size,
+                                 args.recognition_threshold)
+    unknown_faces = UnknownFaces(args.recognition_threshold)
+    store = EmbeddingStore(args.embedding_store) if args.embedding_store else None
+    completed = False
+    decode_error = None
+    last_progress = 0
+    preview = PreviewStream(preview_watching)
+    budget_exhausted = False
+    last_time = start
+    job_started = time.monotonic()
+    deadline = job_started + args.time_budget if args.sampling == 'budget' and args.time_budget > 0 else None
+    emit("progress", percent=0)
+
+    try:
+        while True:
+            item = ring.next()
+            if item is None: break
+            index, frame, pts = item
+            try:
+                sample_count += 1
+                current_time = start + pts
+                last_time = current_time
+
+                if span > 0:
+                    progress_percent = min(99, int(pts / span * 100))
+                    if progress_percent > last_progress:
+                        last_progress = progress_percent
+                        emit("progress", percent=progress_percent)
+
+                if sampler is not None and not sampler.should_analyse(frame, current_time):
+                    continue
+                if deadline is not None and time.monotonic() > deadline:
+                    budget_exhausted = True
+                    break
+                analysed_count += 1
+                # Detection runs on every analysed frame, the recognition model only for new tracks
+                # and for periodic re-verification, batched across frames.
+                bboxes, kpss = app.det_model.detect(frame, max_num=0, metric='default')
+                tracks = tracker.update(current_time, [b[:4] for b in bboxes])
+                for i, track in enumerate(tracks):
+                    if FaceTracker.needs_identification(track, current_time) and kpss is not None:
+                        recognizer.request(ring.hires(index), track, current_time, kpss[i] * kps_scale)
+                report_faces(tracker.take_closed(), unknown_faces, store)
+                preview.offer(frame, tracks, current_time)
+            finally:
+                ring.release(index)
+        completed = True
+    finally:
+        ring.close()
+        # Once every frame is read ffmpeg only has the audio output left to finish, so it is left
+        # to exit by itself then. Its exit status decides whether the range really was decoded: a
+        # corrupt file can end the pipe early just like the end of the video does.
+        decoded_to_end = completed and not budget_exhausted
+        if not decoded_to_end:
+            process.terminate()
+        exit_code = process.wait()
+        if decoded_to_end and exit_code != 0:
+            completed = decoded_to_end = False
+            detail = "; ".join(stderr_tail)
+            decode_error = RuntimeError(f"ffmpeg exited with status {exit_code}" + (f": {detail}" if detail else ""))
+        audio_written = decoded_to_end and bool(args.audio_out)
+        ring.thread.join(timeout=5)
+        # Faces found before a failure are still reported, followed by the error.
+        try:
+            recognizer.flush()
+        except Exception:
+            completed = False
+            raise
+        finally:
+            report_faces(tracker.finish(), unknown_faces, store)
+            if store is not None:
+                store.close(completed)
+    if decode_error is not None:
+        raise decode_error
+
+    emit("progress", percent=100)
+    emit("log", message=f"Analysed {analysed_count} of {sample_count} sampled frames ({args.sampling} sampling), "
+                        f"{recognizer.recognitions} recognitions in {recognizer.batches} batches.")
+
+    if analysed_count > 0:
+        # Remember what a sample really costs on this machine for the next budget plan.
+        global measured_sample_cost
+        cost = (time.monotonic() - job_started) / analysed_count
+        measured_sample_cost = 0.5 * measured_sample_cost + 0.5 * cost
+
+    result = {"audio": audio_written}
+    if args.sampling == 'budget':
+        # Running out of budget leaves the rest of the range unsampled.
+        covered = max(0.0, last_time - start) if budget_exhausted else span
+        result["coverage"] = {
+            "samples": analysed_count,
+            "target_samples": target_samples,
+            "covered_seconds": round(covered, 3),
+            "span_seconds": round(span, 3),
+            "fraction": round(covered / span, 4) if span > 0 else 0.0,
+            "budget_exhausted": budget_exhausted,
+        }
+    return result
+
+
+def decode_photo(path):
+    image = cv2.imread(path, cv2.IMREAD_COLOR)
+    if image is not None and max(image.shape[:2]) > PHOTO_MAX_SIDE:
+        scale = PHOTO_MAX_SIDE / max(image.shape[:2])
+        image = cv2.resize(image, None, fx=scale, fy=scale, interpolation=cv2.INTER_AREA)
+    return image
+
+def process_photos(app, faiss_index, names, args, paths):
+    """Recognises the faces on a batch of photos and emits one photo event per file, in order.
+
+    A thread pool decodes a few photos ahead of detection (OpenCV releases the GIL while decoding),
+    and the faces of all photos share the batched recognition and FAISS search of the video path,
+    each face standing in as a one-observation track.
+    """
+    recognizer = BatchRecognizer(app.models['recognition'], faiss_index, names, args.batch_size,
+                                 args.recognition_threshold)
+    # Someone on several photos of the batch is offered for enrollment once, on the first of them.
+    unknown_faces = UnknownFaces(args.recognition_threshold)
+    waiting = collections.deque()
+    done = 0
+
+    def report_ready(everything=False):
+        nonlocal done
+        while waiting and (everything or all(track.pending == 0 for track in waiting[0][1])):
+            path, tracks, error = waiting.popleft()
+            # A photo has no frames to confirm a face in, so every face nobody matched counts.
+            unknowns = [(*track.sample, 0.0, 0.0) for track in tracks if track.sample is not None]
+            unknown_faces.report(unknowns, path=path)
+            found = sorted({track.current_name() for track in tracks} - {"Unknown"})
+            fields = {"error": error} if error else {}
+            emit("photo", path=path, names=found, faces=len(tracks), **fields)
+            done += 1
+            emit("progress", percent=int(done * 100 / len(paths)))
+
+    emit("progress", percent=0)
+    remaining = iter(paths)
+    with concurrent.futures.ThreadPoolExecutor(max_workers=PHOTO_DECODE_THREADS) as pool:
+        decoding = collections.deque((path, pool.submit(decode_photo, path))
+                                     for path in itertools.islice(remaining, PHOTO_READ_AHEAD))
+        while decoding:
+            path, future = decoding.popleft()
+            following = next(remaining, None)
+            if following is not None:
+                decoding.append((following, pool.submit(decode_photo, following)))
+            try:
+                image = future.result()
+                if image is None:
+                    raise RuntimeError("unreadable image")
+            except Exception as e:
+                waiting.append((path, [], str(e)))
+                report_ready()
+                continue
+            bboxes, kpss = app.det_model.detect(image, max_num=0, metric='default')
+            tracks = []
+            for i, bbox in enumerate(bboxes):
+                track = Track(bbox[:4], 0.0)
+                tracks.append(track)
+                if kpss is not None:
+                    recognizer.request(image, track, 0.0, kpss[i])
+            waiting.append((path, tracks, None))
+            report_ready()
+    recognizer.flush()
+    report_ready(everything=True)
+    emit("log", message=f"Recognised {len(paths)} photos, {recognizer.recognitions} faces in {recognizer.batches} batches.")
+
+def init_face_analysis(providers, threads):
+    print("Initializing InsightFace...")
+    # Only detection and recognition are used, loading the landmark and gender/age models would
+    # just add inference to every face.
+    # Several workers share the machine and must not each take every core. InsightFace does not pass
+    # session options through, so the session class it builds every model with gets them instead of
+    # every session being created once by InsightFace and again here.
+    options = onnxruntime.SessionOptions()
+    options.intra_op_num_threads = threads
+    session_class = insightface.model_zoo.model_zoo.PickableInferenceSession
+
+    class ThreadedSession(session_class):
+        def __init__(self, model_path, **kwargs):
+            super().__init__(model_path, sess_options=options, **kwargs)
+
+    insightface.model_zoo.model_zoo.PickableInferenceSession = ThreadedSession
+    try:
+        app = FaceAnalysis(name=MODEL_NAME, allowed_modules=['detection', 'recognition'], providers=providers)
+    finally:
+        insightface.model_zoo.model_zoo.PickableInferenceSession = session_class
+    app.prepare(ctx_id=0, det_size=(640, 640))
+    cv2.setNumThreads(threads)
+    faiss.omp_set_num_threads(threads)
+    print("InsightFace initialized.")
+    return app
+
+class WorkerInput:
+    """Reads stdin on its own thread, so control messages reach the job that is running. Control
+    messages are applied right away and every other line is queued as a job."""
+
+    def __init__(self, stream):
+        self.jobs = queue.Queue()
+        threading.Thread(target=self._read, args=(stream,), daemon=True).start()
+
+    def _read(self, stream):
+        for line in stream:
+            line = line.strip()
+            if not line:
+                continue
+            try:
+                message = json.loads(line)
+            except ValueError:
+                message = None
+            if isinstance(message, dict) and message.get("control") == "preview":
+                if message.get("enabled"):
+                    preview_watching.set()
+                else:
+                    preview_watching.clear()
+                continue
+            self.jobs.put(line)
+        self.jobs.put(None)
+
+    def __iter__(self):
+        return iter(self.jobs.get, None)
+
+def run_worker(app, faiss_index, names_list, args):
+    """Keeps the models loaded and processes one job per stdin line until stdin is closed.
+
+    A job is a JSON object with either "video_path" or a list of "photos"; the remaining keys
+    override the command line defaults. Every job starts with a start event and ends with an end
+    or error event, so the caller knows the worker is ready for the next one. A line
+    {"control": "preview", "enabled": ...} switches the live preview on or off, also mid-job.
+    """
+    emit("hello", worker="face", pid=os.getpid())
+    gallery_version = face_gallery.current_version(args.gallery) if args.gallery else 0
+    for line in WorkerInput(sys.stdin):
+        job_id = ""
+        try:
+            if args.gallery and face_gallery.current_version(args.gallery) != gallery_version:
+                # Faces were enrolled since the last job.
+                faiss_index, names_list, gallery_version = face_gallery.load(args.gallery)
+                emit("log", message=f"Face gallery version {gallery_version}, {faiss_index.ntotal} faces.")
+            job = json.loads(line)
+            job_id = str(job.get("id", ""))
+            emit("start", id=job_id)
+            job_args = argparse.Namespace(**vars(args))
+            job_args.video_path = job.get("video_path")
+            job_args.frame_skip = int(job.get("frame_skip", args.frame_skip))
+            job_args.resize_width = int(job.get("resize_width", args.resize_width))
+            job_args.recognition_width = int(job.get("recognition_width", args.recognition_width))
+            if "preview" in job:
+                if job["preview"]:
+                    preview_watching.set()
+                else:
+                    preview_watching.clear()
+            job_args.start = float(job.get("start", 0.0))
+            job_args.duration = float(job.get("duration", 0.0))
+            job_args.sample_fps = float(job.get("sample_fps", args.sample_fps))
+            job_args.keyframes_only = bool(job.get("keyframes_only", args.keyframes_only))
+            job_args.sampling = job.get("sampling", args.sampling)
+            job_args.stable_interval = float(job.get("stable_interval", args.stable_interval))
+            job_args.time_budget = float(job.get("time_budget", args.time_budget))
+            job_args.max_samples = int(job.get("max_samples", args.max_samples))
+            job_args.batch_size = int(job.get("batch_size", args.batch_size))
+            job_args.recognition_threshold = float(job.get("recognition_threshold", args.recognition_threshold))
+            job_args.embedding_store = job.get("embedding_store", None)
+            job_args.audio_out = job.get("audio_out", None)
+            if "photos" in job:
+                process_photos(app, faiss_index, names_list, job_args, job["photos"])
+                emit("end", id=job_id)
+                continue
+            result = process_video_from_index(app, faiss_index, names_list, args.ffmpeg_path, args.ffprobe_path, job_args)
+            emit("end", id=job_id, **result)
+        except Exception as e:
+            traceback.print_exc(file=sys.stderr)
+            sys.stderr.flush()
+            emit("error", id=job_id, message=str(e) or e.__class__.__name__)
 
 
 def main():
     parser = argparse.ArgumentParser(description="High-speed video face recognition CLI.")
-    parser.add_argument("video_path", help="Path to the video file to be processed.")
+    parser.add_argument("video_path", nargs="?", help="Path to the video file to be processed. Omitted in --worker mode.")
     parser.add_argument("index_path", help="Path to the FAISS index file.")
     parser.add_argument("names_path", help="Path to the names JSON file.")
     # MODIFIED: Add arguments to receive the absolute paths from Java
+    parser.add_argument("--gallery", help="Face gallery directory, created from index_path and names_path "
+                                          "when empty. Default: use index_path and names_path directly.")
     parser.add_argument("--ffmpeg-path", required=True, help="Absolute path to the ffmpeg executable.")
     parser.add_argument("--ffprobe-path", required=True, help="Absolute path to the ffprobe executable.")
     parser.add_argument("--frame-skip", type=int, default=5, help="Process every N-th frame. Default: 5.")
+    parser.add_argument("--sample-fps", type=float, default=0.0, help="Analyse this many frames per second instead of every N-th frame.")
+    parser.add_argument("--keyframes-only", action="store_true", help="Only decode and analyse keyframes.")
+    parser.add_argument("--sampling", choices=["fixed", "adaptive", "budget"], default="fixed",
+                        help="fixed analyses every sampled frame, adaptive concentrates on shot changes, "
+                             "budget spreads a capped number of samples evenly over the video. Default: fixed.")
+    parser.add_argument("--time-budget", type=float, default=0.0,
+                        help="Budget sampling: seconds of processing allowed for this video.")
+    parser.add_argument("--max-samples", type=int, default=0,
+                        help=f"Budget sampling: upper limit on analysed frames. Default: {DEFAULT_MAX_SAMPLES}.")
+    parser.add_argument("--stable-interval", type=float, default=2.0,
+                        help="Adaptive sampling: seconds between analysed frames within a stable shot. Default: 2.0.")
     parser.add_argument("--resize-width", type=int, default=640, help="Resize frame width. Default: 640.")
-    parser.add_argument("--preview", action="store_true", help="Show the live video processing window.")
+    parser.add_argument("--recognition-width", type=int, default=0,
+                        help="Crop faces for recognition from a second copy of each frame at this width. "
+                             "Default: 0, crop from the detection frame.")
+    parser.add_argument("--batch-size", type=int, default=32, help="Faces embedded and searched per batch. Default: 32.")
+    parser.add_argument("--recognition-threshold", type=float, default=RECOGNITION_THRESHOLD,
+                        help=f"Largest squared L2 distance that still counts as a match. Default: {RECOGNITION_THRESHOLD}.")
+    parser.add_argument("--embedding-store", help="Keep every identification's embedding in this file for re-matching.")
+    parser.add_argument("--audio-out", help="Also write the audio of the processed range to this file as 16 kHz mono float32.")
+    parser.add_argument("--preview", action="store_true", help="Send live preview frames as preview events.")
+    parser.add_argument("--start", type=float, default=0.0, help="Start time in seconds. Detection times stay absolute.")
+    parser.add_argument("--duration", type=float, default=0.0, help="Only process this many seconds. Default: until the end.")
+    parser.add_argument("--accel", choices=["auto"] + list(ACCEL_PROFILES), default="auto",
+                        help="Decode and inference acceleration profile. Default: auto, probe the machine.")
+    parser.add_argument("--threads", type=int, default=0,
+                        help="Inference, OpenCV and FAISS threads. Default: 0, one per CPU core.")
+    parser.add_argument("--worker", action="store_true", help="Stay resident and read one JSON job per line from stdin.")
     args = parser.parse_args()
+    if not args.worker and not args.video_path:
+        parser.error("video_path is required unless --worker is given.")
+
+    try:
+        if args.gallery:
+            face_gallery.seed(args.gallery, args.index_path, args.names_path)
+            faiss_index, names_list, _ = face_gallery.load(args.gallery)
+        else:
+            faiss_index, names_list = load_faiss_index(args.index_path, args.names_path)
+        profile, args.hwaccel, providers, threads = select_accel_profile(args.accel, args.ffmpeg_path, args.threads)
+        app = init_face_analysis(providers, threads)
+        active = app.models['detection'].session.get_providers()
+        emit("log", message=f"Acceleration profile: {profile} (decode: {args.hwaccel or 'software'}, "
+                            f"inference: {', '.join(active)}, threads: {threads})")
+    except Exception as e:
+        print(f"{e}", file=sys.stderr)
+        sys.exit(1)
+
+    if args.preview:
+        preview_watching.set()
+    if args.worker:
+        run_worker(app, faiss_index, names_list, args)
+        return
 
-    faiss_index, names_list = load_faiss_index(args.index_path, args.names_path)
-    print("Initializing InsightFace...")
-    app = FaceAnalysis(name=MODEL_NAME, providers=['CoreMLExecutionProvider', 'CPUExecutionProvider'])
-    app.prepare(ctx_id=0, det_size=(640, 640))
-    print("InsightFace initialized.")
     # MODIFIED: Pass the new path arguments to the processing function
-    process_video_from_index(app, faiss_index, names_list, args.ffmpeg_path, args.ffprobe_path, args)
+    emit("start", id="")
+    try:
+        result = process_video_from_index(app, faiss_index, names_list, args.ffmpeg_path, args.ffprobe_path, args)
+        emit("end", id="", **result)
+    except Exception as e:
+        print(f"{e}", file=sys.stderr)
+        emit("error", id="", message=str(e) or e.__class__.__name__)
+        sys.exit(1)
 
 if __name__ == "__main__":
-    main()
\ No newline at end of file
+    main()
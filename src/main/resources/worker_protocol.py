@@ -0,0 +1,36 @@
+"""The line protocol between the Python scripts and MediaTagger.
+
+Every message is one stdout line: EVENT: followed by a JSON object with the protocol version "v"
+and the event "type". Any other stdout line is plain log output. Adding an event type or a field
+keeps the version, readers skip what they do not know; renaming or removing one bumps it.
+
+    hello       the worker has loaded its models and takes jobs
+    start       a job begins; a reader drops what it collected for an earlier attempt of it
+    progress    percent of the job done, optionally with a status text for the progress dialog
+    track       a named face from start to end in seconds
+    unknown     an unrecognised person from start to end, with a base64 float32 embedding and
+                a base64 JPEG thumbnail of the aligned face, and the path of the photo it is on
+                in photo jobs
+    photo       the names recognised on one photo of a photo job, with an error if it failed
+    preview     a live preview frame at a time in seconds, as a base64 JPEG with the boxes drawn
+    vad         the voice activity pre-pass: seconds of speech, duration and their ratio
+    speaker     a new speaker of a speech job, with its label and base64 float32 voice embedding
+    segment     a transcribed speech segment with start, end, text and speaker
+    log         a status message
+    end         the job is complete; a face job says whether it wrote the audio of its whole range
+    error       the job failed; everything reported before it is still valid
+"""
+import json
+import sys
+
+# Version 2 dropped the per-sample detection event, which the track intervals replace.
+PROTOCOL_VERSION = 2
+EVENT_PREFIX = "EVENT:"
+
+def emit(event_type, flush=True, **fields):
+    """Writes one event. Bulk events pass flush=False and are flushed with the next progress or end."""
+    event = {"v": PROTOCOL_VERSION, "type": event_type}
+    event.update(fields)
+    sys.stdout.write(EVENT_PREFIX + json.dumps(event, separators=(',', ':')) + "\n")
+    if flush:
+        sys.stdout.flush()